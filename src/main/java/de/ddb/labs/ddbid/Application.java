@@ -117,7 +117,7 @@ public class Application {
         }
         log.info("Check for dump lockfile...");
         if (Files.exists(Path.of(lockfile), LinkOption.NOFOLLOW_LINKS)) {
-            log.info("There was a cancled dump run. Delete it...");
+            log.info("There was a cancled dump run. Delete invalid dumps, but keep resumable ones...");
             Files.deleteIfExists(Path.of(lockfile));
             Helper.deleteInvalidDumps(dataPathItem);
             Helper.deleteInvalidDumps(dataPathPerson);
@@ -16,6 +16,7 @@
 package de.ddb.labs.ddbid.controller;
 
 import de.ddb.labs.ddbid.cronjob.helper.Helper;
+import de.ddb.labs.ddbid.cronjob.helper.Manifest;
 import de.ddb.labs.ddbid.service.GitHubService;
 import java.io.File;
 import java.io.IOException;
@@ -78,7 +79,24 @@ public class DownloadController {
 
     private Map<String, String> setToMap(Set<File> set) {
         return set.stream()
-                .collect(Collectors.toMap(File::getName, file -> readableFileSize(file.length()), (o1, o2) -> o1, LinkedHashMap::new));
+                .collect(Collectors.toMap(File::getName, file -> readableFileSize(file.length()) + readableRows(file), (o1, o2) -> o1, LinkedHashMap::new));
+    }
+
+    /**
+     *
+     * @param file Dump or compare file
+     * @return Row count of the manifest or an empty string if it's unknown
+     */
+    private static String readableRows(File file) {
+        try {
+            final Manifest manifest = Helper.getManifest(file);
+            if (manifest == null || manifest.getRows() < 0) {
+                return "";
+            }
+            return ", " + FORMATTER.get().format(manifest.getRows()) + " rows";
+        } catch (IOException e) {
+            return "";
+        }
     }
 
     public static String readableFileSize(long size) {
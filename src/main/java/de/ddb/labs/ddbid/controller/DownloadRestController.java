@@ -15,16 +15,35 @@
  */
 package de.ddb.labs.ddbid.controller;
 
+import de.ddb.labs.ddbid.cronjob.helper.Archive;
+import de.ddb.labs.ddbid.cronjob.helper.BloomFilter;
+import de.ddb.labs.ddbid.cronjob.helper.Codec;
+import de.ddb.labs.ddbid.cronjob.helper.Helper;
+import de.ddb.labs.ddbid.cronjob.helper.BlockIndex;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.INDEX_FILENAME_EXT;
 import de.ddb.labs.ddbid.service.GitHubService;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
 import org.apache.tomcat.util.http.fileupload.IOUtils;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.errors.CorruptObjectException;
@@ -36,6 +55,7 @@ import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 @RestController
@@ -43,6 +63,8 @@ import org.springframework.web.bind.annotation.RestController;
 @Slf4j
 public class DownloadRestController<T> {
 
+    private static final int LOOKUP_LIMIT = 10000; // max. count of rows of a lookup
+
     @Value(value = "${ddbid.datapath.item}")
     private String itemDataPath;
 
@@ -62,7 +84,7 @@ public class DownloadRestController<T> {
         if (type.equals("item")) {
             final Set s = Stream.of(new File(itemDataPath).listFiles())
                     .filter(file -> !file.isDirectory())
-                    .filter(file -> file.getName().endsWith(".gz"))
+                    .filter(file -> Codec.fromFileName(file.getName()) != null)
                     .map(File::getName)
                     .collect(Collectors.toSet());
             if (s.contains(filename)) {
@@ -80,7 +102,7 @@ public class DownloadRestController<T> {
         } else if (type.equals("person")) {
             final Set s = Stream.of(new File(personDataPath).listFiles())
                     .filter(file -> !file.isDirectory())
-                    .filter(file -> file.getName().endsWith(".gz"))
+                    .filter(file -> Codec.fromFileName(file.getName()) != null)
                     .map(File::getName)
                     .collect(Collectors.toSet());
             if (s.contains(filename)) {
@@ -97,7 +119,7 @@ public class DownloadRestController<T> {
         } else if (type.equals("organization")) {
             final Set s = Stream.of(new File(organizationDataPath).listFiles())
                     .filter(file -> !file.isDirectory())
-                    .filter(file -> file.getName().endsWith(".gz"))
+                    .filter(file -> Codec.fromFileName(file.getName()) != null)
                     .map(File::getName)
                     .collect(Collectors.toSet());
             if (s.contains(filename)) {
@@ -117,6 +139,99 @@ public class DownloadRestController<T> {
         }
     }
 
+    /**
+     * Looks up single ids or an id range in a dump with the block index of
+     * the dump, so only the matching blocks are decompressed. A single id
+     * which is not in the bloom filter of the dump is not looked up at all.
+     */
+    @GetMapping
+    @RequestMapping("lookup/{type}/{date}")
+    public void lookup(@PathVariable("type") String type, @PathVariable("date") String date, @RequestParam(value = "id", required = false) String id, @RequestParam(value = "from", required = false) String from, @RequestParam(value = "to", required = false) String to, HttpServletResponse response) throws IOException {
+        final String dataPath;
+        switch (type) {
+            case "item":
+                dataPath = itemDataPath;
+                break;
+            case "person":
+                dataPath = personDataPath;
+                break;
+            case "organization":
+                dataPath = organizationDataPath;
+                break;
+            default:
+                response.sendError(404);
+                return;
+        }
+        if (id != null) {
+            from = id;
+            to = id;
+        }
+        if (from == null || to == null) {
+            response.sendError(400, "Parameter id or parameters from and to are required");
+            return;
+        }
+        final Path index = Path.of(dataPath + date + INDEX_FILENAME_EXT);
+        final Path dump = Helper.getOkDumpFiles(dataPath, Comparator.naturalOrder()).stream()
+                .filter(file -> Codec.baseName(file.getName()).equals(date))
+                .map(File::toPath)
+                .findFirst().orElse(null);
+        if (dump == null || !Files.exists(index)) {
+            response.sendError(404);
+            return;
+        }
+        final BlockIndex blockIndex = BlockIndex.read(index);
+        // a single id which is not in the bloom filter is not in the dump
+        final BloomFilter bloomFilter = id != null ? Helper.getBloomFilter(dump.toFile()) : null;
+        final List<CSVRecord> records = bloomFilter != null && !bloomFilter.mightContain(id) ? List.of() : blockIndex.lookup(dump, from, to, LOOKUP_LIMIT);
+        response.setContentType("text/csv");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        try (final CSVPrinter printer = new CSVPrinter(response.getWriter(), CSVFormat.DEFAULT)) {
+            printer.printRecord(blockIndex.getHeader());
+            for (CSVRecord record : records) {
+                printer.printRecord(record);
+            }
+        }
+    }
+
+    /**
+     * Reconstructs the ids of a past date from the archive, i.e. the latest
+     * dump before the date and the compare files after it.
+     */
+    @GetMapping
+    @RequestMapping("archive/{type}/{date}")
+    public void getArchivedIds(@PathVariable("type") String type, @PathVariable("date") String date, HttpServletResponse response) throws IOException {
+        final String dataPath;
+        switch (type) {
+            case "item":
+                dataPath = itemDataPath;
+                break;
+            case "person":
+                dataPath = personDataPath;
+                break;
+            case "organization":
+                dataPath = organizationDataPath;
+                break;
+            default:
+                response.sendError(404);
+                return;
+        }
+        final LocalDate localDate;
+        try {
+            localDate = LocalDate.parse(date);
+        } catch (DateTimeParseException e) {
+            response.sendError(400, "Date must be yyyy-MM-dd");
+            return;
+        }
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + type + "-ids-" + date + ".txt\"");
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        // the response is only committed by the first written id
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        if (Archive.writeIds(dataPath, localDate, writer) == null) {
+            response.sendError(404);
+        }
+    }
+
     @GetMapping
     @RequestMapping("migration/{commit}/{date}")
     public void getMigrationFile(@PathVariable("commit") String commit, @PathVariable("date") String date, HttpServletResponse response) throws IOException, IncorrectObjectTypeException, CorruptObjectException, GitAPIException {
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.controller;
+
+import de.ddb.labs.ddbid.cronjob.helper.Codec;
+import de.ddb.labs.ddbid.cronjob.helper.Helper;
+import de.ddb.labs.ddbid.cronjob.helper.SnapshotBitmap;
+import de.ddb.labs.ddbid.model.Status;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("snapshot")
+@Slf4j
+public class SnapshotRestController {
+
+    @Value(value = "${ddbid.datapath.item}")
+    private String itemDataPath;
+
+    @Value(value = "${ddbid.datapath.person}")
+    private String personDataPath;
+
+    @Value(value = "${ddbid.datapath.organization}")
+    private String organizationDataPath;
+
+    /**
+     * Counts the NEW and MISSING ids between two snapshots by their bitmaps.
+     * With a column, e.g. provider_id, the counts are broken down by its
+     * values, NEW ids by the newer and MISSING ids by the older snapshot.
+     */
+    @GetMapping
+    @RequestMapping("{type}/{from}/{to}")
+    public Map<String, Object> compare(@PathVariable("type") String type, @PathVariable("from") String from, @PathVariable("to") String to, @RequestParam(value = "column", required = false) String column, HttpServletResponse response) throws IOException {
+        final String dataPath;
+        switch (type) {
+            case "item":
+                dataPath = itemDataPath;
+                break;
+            case "person":
+                dataPath = personDataPath;
+                break;
+            case "organization":
+                dataPath = organizationDataPath;
+                break;
+            default:
+                response.sendError(404);
+                return null;
+        }
+        if (column != null && !SnapshotBitmap.ATTRIBUTE_COLUMNS.contains(column)) {
+            response.sendError(400, "Column must be one of " + SnapshotBitmap.ATTRIBUTE_COLUMNS);
+            return null;
+        }
+        // only dates of complete dumps, so the path can't leave the data path
+        final Set<String> dates = Helper.getOkDumpFiles(dataPath, Comparator.naturalOrder()).stream()
+                .map(file -> Codec.baseName(file.getName()))
+                .collect(Collectors.toSet());
+        if (!dates.contains(from) || !dates.contains(to)) {
+            response.sendError(404);
+            return null;
+        }
+        final SnapshotBitmap bitmapFrom = Helper.getSnapshotBitmap(dataPath, from);
+        final SnapshotBitmap bitmapTo = Helper.getSnapshotBitmap(dataPath, to);
+        if (bitmapFrom == null || bitmapTo == null) {
+            response.sendError(404);
+            return null;
+        }
+        final RoaringBitmap added = RoaringBitmap.andNot(bitmapTo.getIds(), bitmapFrom.getIds());
+        final RoaringBitmap missing = RoaringBitmap.andNot(bitmapFrom.getIds(), bitmapTo.getIds());
+
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("from", from);
+        result.put("to", to);
+        result.put(Status.NEW.toString(), added.getCardinality());
+        result.put(Status.MISSING.toString(), missing.getCardinality());
+        if (column != null) {
+            final Map<String, Object> breakdown = new LinkedHashMap<>();
+            breakdown.put(Status.NEW.toString(), bitmapTo.countByAttribute(column, added));
+            breakdown.put(Status.MISSING.toString(), bitmapFrom.countByAttribute(column, missing));
+            result.put(column, breakdown);
+        }
+        return result;
+    }
+}
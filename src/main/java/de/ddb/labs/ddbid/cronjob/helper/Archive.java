@@ -0,0 +1,284 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.COLUMNAR_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.COMPARE_OUTPUT_FILENAME_PREFIX;
+import de.ddb.labs.ddbid.model.Status;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Long-term archive of the ids of a data path. Full dumps are only kept as
+ * base snapshots every few months, see {@link #getBases(Set, int)}, while the
+ * compare files between consecutive dumps are kept forever. The ids of any
+ * archived date are reconstructed from the latest dump before that date and
+ * the chain of compare files after it.
+ *
+ * Dumps and compare files are sorted by id, so the reconstruction streams
+ * all files at once and keeps only one id per file in memory.
+ */
+@Slf4j
+public class Archive {
+
+    private Archive() {
+    }
+
+    /**
+     * Base snapshots of an archive. The first dump is a base and every dump
+     * at least the given count of months after the previous base. Bases stay
+     * bases, because newer dumps don't change the result for older ones.
+     *
+     * @param okDumps Valid dumps
+     * @param baseMonths Months between two bases, 0 disables the archive
+     * @return Dumps which are bases
+     */
+    public static Set<File> getBases(Set<File> okDumps, int baseMonths) {
+        final Set<File> bases = new TreeSet<>();
+        if (baseMonths <= 0) {
+            return bases;
+        }
+        final TreeSet<File> sorted = new TreeSet<>(Comparator.comparing(File::getName));
+        sorted.addAll(okDumps);
+        LocalDate next = null;
+        for (File dump : sorted) {
+            final LocalDate date = getDate(dump.getName());
+            if (next == null || !date.isBefore(next)) {
+                bases.add(dump);
+                next = date.plusMonths(baseMonths);
+            }
+        }
+        return bases;
+    }
+
+    /**
+     * Writes the sorted ids of the latest snapshot on or before a date, one id
+     * per line.
+     *
+     * @param dataPath Data path of a type
+     * @param date Date
+     * @param out Output
+     * @return Date of the reconstructed snapshot or null if there is no dump on
+     * or before the date
+     * @throws IOException
+     */
+    public static LocalDate writeIds(String dataPath, LocalDate date, Writer out) throws IOException {
+        File start = null;
+        for (File dump : Helper.getOkDumpFiles(dataPath, Comparator.naturalOrder())) {
+            if (!getDate(dump.getName()).isAfter(date)) {
+                start = dump;
+            }
+        }
+        if (start == null) {
+            return null;
+        }
+
+        // chain of compare files from the start dump up to the date
+        final Map<LocalDate, File[]> deltas = getDeltas(dataPath);
+        final List<File[]> chain = new ArrayList<>();
+        LocalDate snapshot = getDate(start.getName());
+        File[] delta;
+        while ((delta = deltas.get(snapshot)) != null && delta[0] != null && delta[1] != null) {
+            final LocalDate to = getDate(delta[0].getName().substring(COMPARE_OUTPUT_FILENAME_PREFIX.length() + 11));
+            if (to.isAfter(date)) {
+                break;
+            }
+            chain.add(delta);
+            snapshot = to;
+        }
+        log.info("Reconstruct {} from {} and {} compare files", snapshot, start.getName(), chain.size() * 2);
+
+        final List<Closeable> files = new ArrayList<>();
+        try {
+            IdIterator ids = openDump(start, files);
+            for (File[] d : chain) {
+                ids = new DeltaIterator(ids, open(d[0], files), open(d[1], files));
+            }
+            long count = 0;
+            for (String id = ids.next(); id != null; id = ids.next()) {
+                out.write(id);
+                out.write('\n');
+                ++count;
+            }
+            out.flush();
+            log.info("Reconstructed {} ids of {}", count, snapshot);
+        } finally {
+            for (Closeable c : files) {
+                c.close();
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     *
+     * @param dataPath Data path
+     * @return MISSING and NEW compare file by the date of their older dump
+     */
+    private static Map<LocalDate, File[]> getDeltas(String dataPath) {
+        final Map<LocalDate, File[]> deltas = new HashMap<>();
+        for (File cmp : Helper.getOkCmpFiles(dataPath, Comparator.naturalOrder())) {
+            final String name = cmp.getName().substring(COMPARE_OUTPUT_FILENAME_PREFIX.length());
+            final File[] pair = deltas.computeIfAbsent(getDate(name), d -> new File[2]);
+            if (Codec.baseName(name).endsWith(Status.MISSING.toString())) {
+                pair[0] = cmp;
+            } else {
+                pair[1] = cmp;
+            }
+        }
+        return deltas;
+    }
+
+    private static LocalDate getDate(String fileName) {
+        return LocalDate.parse(fileName.substring(0, 10));
+    }
+
+    /**
+     * Opens the ids of a dump. The columnar snapshot of the dump, if there is
+     * one, is read instead of the dump, so only the id column is decoded.
+     *
+     * @param dump Dump file
+     * @param files Files to close
+     * @return Ids
+     * @throws IOException
+     */
+    private static IdIterator openDump(File dump, List<Closeable> files) throws IOException {
+        final File columnarFile = new File(dump.getParentFile(), Codec.baseName(dump.getName()) + COLUMNAR_FILENAME_EXT);
+        if (!columnarFile.isFile() || columnarFile.lastModified() < dump.lastModified()) {
+            return open(dump, files);
+        }
+        final ColumnarReader.Rows rows;
+        try {
+            final ColumnarReader reader = new ColumnarReader(columnarFile.toPath());
+            files.add(reader);
+            rows = reader.rows("id");
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Could not read columnar snapshot {}, read {} instead. {}", columnarFile.getName(), dump.getName(), e.getMessage());
+            return open(dump, files);
+        }
+        files.add(rows);
+        return checked(columnarFile, () -> {
+            final String[] values = rows.next();
+            return values == null ? null : values[0];
+        });
+    }
+
+    private static IdIterator open(File file, List<Closeable> files) throws IOException {
+        final CSVParser parser = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(new InputStreamReader(Codec.open(file.toPath()), StandardCharsets.UTF_8));
+        files.add(parser);
+        final Iterator<CSVRecord> records = parser.iterator();
+        return checked(file, () -> records.hasNext() ? records.next().get("id") : null);
+    }
+
+    /**
+     *
+     * @param file File of the ids
+     * @param ids Ids of the file
+     * @return Ids, which fail if they are not sorted
+     */
+    private static IdIterator checked(File file, IdIterator ids) {
+        return new IdIterator() {
+            private String previous;
+
+            @Override
+            public String next() throws IOException {
+                final String id = ids.next();
+                if (id == null) {
+                    return null;
+                }
+                // the ids are merged, so a file out of order gives wrong ids
+                if (previous != null && id.compareTo(previous) < 0) {
+                    throw new IOException(file.getName() + " is not sorted by id at " + id + ". The snapshot can't be reconstructed.");
+                }
+                previous = id;
+                return id;
+            }
+        };
+    }
+
+    /**
+     * Sorted ids, null at the end.
+     */
+    private interface IdIterator {
+
+        String next() throws IOException;
+    }
+
+    /**
+     * Ids of the older snapshot without the MISSING and with the NEW ids of a
+     * compare, merged in id order.
+     */
+    private static class DeltaIterator implements IdIterator {
+
+        private final IdIterator older;
+        private final IdIterator missing;
+        private final IdIterator added;
+        private String nextOlder;
+        private String nextMissing;
+        private String nextAdded;
+
+        private DeltaIterator(IdIterator older, IdIterator missing, IdIterator added) throws IOException {
+            this.older = older;
+            this.missing = missing;
+            this.added = added;
+            this.nextOlder = older.next();
+            this.nextMissing = missing.next();
+            this.nextAdded = added.next();
+        }
+
+        @Override
+        public String next() throws IOException {
+            while (nextOlder != null) {
+                if (nextAdded != null && nextAdded.compareTo(nextOlder) < 0) {
+                    break;
+                }
+                while (nextMissing != null && nextMissing.compareTo(nextOlder) < 0) {
+                    nextMissing = missing.next();
+                }
+                final String id = nextOlder;
+                nextOlder = older.next();
+                if (id.equals(nextAdded)) {
+                    nextAdded = added.next();
+                }
+                if (!id.equals(nextMissing)) {
+                    return id;
+                }
+            }
+            final String id = nextAdded;
+            if (id != null) {
+                nextAdded = added.next();
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Sparse index of a dump written in row-aligned members. Every entry
+ * holds the first id, the byte offset and the row count of a member. Dumps
+ * are sorted by id, so a lookup finds the member of an id by binary search
+ * and decompresses only this member.
+ *
+ * The index file is a text file with the CSV header of the dump in the first
+ * line and one tab separated entry per line.
+ */
+public class BlockIndex {
+
+    private final List<String> header;
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     *
+     * @param header CSV header of the dump
+     */
+    public BlockIndex(List<String> header) {
+        this.header = List.copyOf(header);
+    }
+
+    public List<String> getHeader() {
+        return header;
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    public synchronized void add(String firstId, long offset, int rows) {
+        entries.add(new Entry(firstId, offset, rows));
+    }
+
+    /**
+     * Removes all entries at or after an offset, e.g. the ones behind the
+     * checkpoint of a resumed dump.
+     *
+     * @param offset Offset
+     */
+    public synchronized void truncate(long offset) {
+        entries.removeIf(e -> e.offset() >= offset);
+    }
+
+    /**
+     * Appends the entries of the index of a file, which is appended to the
+     * file of this index.
+     *
+     * @param other Index of the appended file
+     * @param shift Offset of the appended file
+     */
+    public synchronized void append(BlockIndex other, long shift) {
+        for (Entry e : other.getEntries()) {
+            entries.add(new Entry(e.firstId(), e.offset() + shift, e.rows()));
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file first and moves it in place
+     * afterwards, like a checkpoint.
+     *
+     * @param path Index file
+     * @throws IOException
+     */
+    public synchronized void write(Path path) throws IOException {
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (final BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            bw.write(CSVFormat.DEFAULT.format(header.toArray()));
+            bw.newLine();
+            for (Entry e : entries) {
+                bw.write(e.firstId() + "\t" + e.offset() + "\t" + e.rows());
+                bw.newLine();
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static BlockIndex read(Path path) throws IOException {
+        try (final BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            final String headerLine = br.readLine();
+            if (headerLine == null) {
+                throw new IOException("Index " + path + " is empty");
+            }
+            final BlockIndex index;
+            try (final CSVParser parser = CSVFormat.DEFAULT.parse(new StringReader(headerLine))) {
+                index = new BlockIndex(parser.getRecords().get(0).toList());
+            }
+            String line;
+            while ((line = br.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length != 3) {
+                    throw new IOException("Index " + path + " is corrupt: " + line);
+                }
+                index.entries.add(new Entry(fields[0], Long.parseLong(fields[1]), Integer.parseInt(fields[2])));
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Reads all rows with an id between two ids from a dump.
+     *
+     * @param dump Dump of this index
+     * @param fromId First id, inclusive
+     * @param toId Last id, inclusive
+     * @param limit Max. count of rows
+     * @return CSV records of the rows
+     * @throws IOException
+     */
+    public List<CSVRecord> lookup(Path dump, String fromId, String toId, int limit) throws IOException {
+        final List<Entry> snapshot = getEntries();
+        final List<CSVRecord> records = new ArrayList<>();
+        if (snapshot.isEmpty() || fromId.compareTo(toId) > 0) {
+            return records;
+        }
+        // last member starting at or before fromId
+        int low = 0;
+        int high = snapshot.size() - 1;
+        int first = 0;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (snapshot.get(mid).firstId().compareTo(fromId) <= 0) {
+                first = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        final Codec codec = Codec.fromFileName(dump.getFileName().toString());
+        if (codec == null) {
+            throw new IOException("Unknown compression of " + dump);
+        }
+        try (final FileChannel channel = FileChannel.open(dump, StandardOpenOption.READ)) {
+            for (int i = first; i < snapshot.size() && snapshot.get(i).firstId().compareTo(toId) <= 0; ++i) {
+                final long offset = snapshot.get(i).offset();
+                final long end = i + 1 < snapshot.size() ? snapshot.get(i + 1).offset() : channel.size();
+                for (CSVRecord record : readMember(codec, channel, offset, end)) {
+                    final String id = record.get("id");
+                    if (id.compareTo(toId) > 0 || records.size() >= limit) {
+                        return records;
+                    }
+                    if (id.compareTo(fromId) >= 0) {
+                        records.add(record);
+                    }
+                }
+            }
+        }
+        return records;
+    }
+
+    private List<CSVRecord> readMember(Codec codec, FileChannel channel, long offset, long end) throws IOException {
+        channel.position(offset);
+        final InputStream is = codec.decompress(new BoundedInputStream(Channels.newInputStream(channel), end - offset));
+        try (final Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8);
+                final CSVParser parser = CSVFormat.DEFAULT.builder().setHeader(header.toArray(String[]::new)).setSkipHeaderRecord(offset == 0).build().parse(reader)) {
+            return parser.getRecords();
+        }
+    }
+
+    public record Entry(String firstId, long offset, int rows) {
+
+    }
+
+    /**
+     * Limits a stream to the bytes of one member.
+     */
+    private static class BoundedInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b != -1) {
+                --remaining;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+}
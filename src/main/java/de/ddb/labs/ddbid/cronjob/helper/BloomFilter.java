@@ -0,0 +1,182 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.commons.codec.digest.MurmurHash3;
+
+/**
+ * Bloom filter of the ids of a dump. "Not contained" is always correct,
+ * "contained" is wrong with the configured false positive probability and
+ * has to be checked against the dump.
+ *
+ * A filter is either built while a dump is written, by several threads at
+ * once, or memory-mapped read-only from its file. The file has a header of
+ * magic, version, count of hash functions, count of bits and count of ids,
+ * followed by the bits as big-endian longs.
+ */
+public class BloomFilter {
+
+    private static final int MAGIC = 0x44444246; // DDBF
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final int hashes;
+    private final long bits;
+    private final AtomicLongArray words;
+    private final LongBuffer mapped;
+    private final AtomicLong count;
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param expectedIds Expected count of ids
+     * @param fpp False positive probability, e.g. 0.01
+     */
+    public BloomFilter(long expectedIds, double fpp) {
+        if (fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("False positive probability must be between 0 and 1, but is " + fpp);
+        }
+        final long n = Math.max(1, expectedIds);
+        final long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        final long wordCount = Math.max(1, (m + 63) / 64);
+        if (wordCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter for " + expectedIds + " ids is too large");
+        }
+        this.bits = wordCount * 64;
+        this.hashes = (int) Math.max(1, Math.round((double) bits / n * Math.log(2)));
+        this.words = new AtomicLongArray((int) wordCount);
+        this.mapped = null;
+        this.count = new AtomicLong();
+    }
+
+    private BloomFilter(int hashes, long bits, long count, LongBuffer mapped) {
+        this.hashes = hashes;
+        this.bits = bits;
+        this.words = null;
+        this.mapped = mapped;
+        this.count = new AtomicLong(count);
+    }
+
+    /**
+     * Memory-maps a filter file. The mapping stays valid after this method,
+     * it's released with the returned object.
+     *
+     * @param path Filter file
+     * @return Read-only filter
+     * @throws IOException
+     */
+    public static BloomFilter open(Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException(path + " is not a bloom filter");
+            }
+            final int hashes = buffer.getInt(8);
+            final long bits = buffer.getLong(16);
+            final long count = buffer.getLong(24);
+            if (hashes < 1 || bits < 64 || bits % 64 != 0 || buffer.capacity() != HEADER_SIZE + bits / 8) {
+                throw new IOException(path + " is a corrupt bloom filter");
+            }
+            return new BloomFilter(hashes, bits, count, buffer.position(HEADER_SIZE).slice().asLongBuffer());
+        }
+    }
+
+    public void put(String id) {
+        final long[] hash = hash(id);
+        long combined = hash[0];
+        for (int i = 0; i < hashes; ++i) {
+            final long bit = (combined & Long.MAX_VALUE) % bits;
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+            // most bits are set already in a filled filter
+            if ((words.get(word) & mask) == 0) {
+                words.getAndAccumulate(word, mask, (a, b) -> a | b);
+            }
+            combined += hash[1];
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     *
+     * @param id Id
+     * @return false if the id is definitely not contained
+     */
+    public boolean mightContain(String id) {
+        final long[] hash = hash(id);
+        long combined = hash[0];
+        for (int i = 0; i < hashes; ++i) {
+            final long bit = (combined & Long.MAX_VALUE) % bits;
+            if ((getWord((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += hash[1];
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return Count of added ids
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Writes the filter to a temporary file first and moves it in place
+     * afterwards.
+     *
+     * @param path Filter file
+     * @throws IOException
+     */
+    public void write(Path path) throws IOException {
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(hashes).putInt(0).putLong(bits).putLong(count.get());
+        try (final OutputStream os = Files.newOutputStream(tmp)) {
+            for (int i = 0; i < bits / 64; ++i) {
+                if (!buffer.hasRemaining()) {
+                    os.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                buffer.putLong(getWord(i));
+            }
+            os.write(buffer.array(), 0, buffer.position());
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long getWord(int i) {
+        return words != null ? words.get(i) : mapped.get(i);
+    }
+
+    private static long[] hash(String id) {
+        return MurmurHash3.hash128x64(id.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import lombok.Data;
+
+/**
+ * State of a partial dump file. The dump file is valid up to {@link #offset},
+ * which is always a member boundary, and the cursor walk continues with
+ * {@link #cursorMark}.
+ */
+@Data
+public class Checkpoint {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private String filter;
+    private String format;
+    private String cursorMark;
+    private int totalCount;
+    private int processedCount;
+    private long offset;
+    private boolean done;
+
+    public static Checkpoint read(Path path) throws IOException {
+        return MAPPER.readValue(path.toFile(), Checkpoint.class);
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file first and moves it in place
+     * afterwards, so a crash never leaves a half written checkpoint.
+     *
+     * @param path Checkpoint file
+     * @throws IOException
+     */
+    public void write(Path path) throws IOException {
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        MAPPER.writeValue(tmp.toFile(), this);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
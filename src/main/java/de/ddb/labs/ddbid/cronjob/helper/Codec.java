@@ -0,0 +1,145 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * Compression of CSV files. The codec of a file is given by its extension.
+ * All codecs allow concatenated members (gzip) or frames (zstd, LZ4), which
+ * are read as one stream, so every codec can be written with
+ * {@link MemberOutputStream}.
+ */
+@Slf4j
+public enum Codec {
+    GZIP("gzip", ".csv.gz"),
+    ZSTD("zstd", ".csv.zst"),
+    LZ4("lz4", ".csv.lz4");
+
+    /**
+     * Regular expression of the extensions of all codecs
+     */
+    public static final String EXTENSION_PATTERN = "\\.csv\\.(gz|zst|lz4)";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int ZSTD_LEVEL = 3;
+
+    @Getter
+    private final String name;
+
+    @Getter
+    private final String extension;
+
+    Codec(String name, String extension) {
+        this.name = name;
+        this.extension = extension;
+    }
+
+    /**
+     * Codec of a configuration value. Unknown codecs fall back to gzip.
+     *
+     * @param name gzip, zstd or lz4
+     * @return Codec
+     */
+    public static Codec of(String name) {
+        for (Codec codec : values()) {
+            if (name != null && codec.name.equalsIgnoreCase(name.trim())) {
+                return codec;
+            }
+        }
+        log.warn("Codec {} is not supported. Use {}.", name, GZIP.name);
+        return GZIP;
+    }
+
+    /**
+     *
+     * @param fileName File name
+     * @return Codec of the extension or null
+     */
+    public static Codec fromFileName(String fileName) {
+        for (Codec codec : values()) {
+            if (fileName.endsWith(codec.extension)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param fileName File name
+     * @return File name without the extension of its codec
+     */
+    public static String baseName(String fileName) {
+        final Codec codec = fromFileName(fileName);
+        return codec == null ? fileName : fileName.substring(0, fileName.length() - codec.extension.length());
+    }
+
+    /**
+     * Opens a compressed file with the codec of its extension.
+     *
+     * @param path File
+     * @return Decompressed stream
+     * @throws IOException
+     */
+    public static InputStream open(Path path) throws IOException {
+        final Codec codec = fromFileName(path.getFileName().toString());
+        if (codec == null) {
+            throw new IOException("Unknown compression of " + path);
+        }
+        return codec.decompress(Files.newInputStream(path));
+    }
+
+    public InputStream decompress(InputStream in) throws IOException {
+        return switch (this) {
+            case GZIP ->
+                new GZIPInputStream(in, BUFFER_SIZE);
+            case ZSTD ->
+                new BufferedInputStream(new ZstdInputStream(in), BUFFER_SIZE);
+            case LZ4 ->
+                new BufferedInputStream(new LZ4FrameInputStream(in), BUFFER_SIZE);
+        };
+    }
+
+    /**
+     *
+     * @param out Underlying stream
+     * @return Stream which writes one member or frame until it's closed
+     * @throws IOException
+     */
+    public OutputStream compress(OutputStream out) throws IOException {
+        return switch (this) {
+            case GZIP ->
+                new GZIPOutputStream(out, BUFFER_SIZE);
+            case ZSTD ->
+                new ZstdOutputStream(out, ZSTD_LEVEL);
+            case LZ4 ->
+                new LZ4FrameOutputStream(out);
+        };
+    }
+}
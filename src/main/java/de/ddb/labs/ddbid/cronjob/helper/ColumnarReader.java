@@ -0,0 +1,282 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import static de.ddb.labs.ddbid.cronjob.helper.ColumnarWriter.ENCODING_DICTIONARY;
+import static de.ddb.labs.ddbid.cronjob.helper.ColumnarWriter.MAGIC;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a columnar snapshot written by {@link ColumnarWriter}. Only the
+ * segments of the requested columns are read and inflated, e.g. a reader of
+ * the ids never touches the labels.
+ */
+public class ColumnarReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final Map<String, ColumnInfo> columns = new LinkedHashMap<>();
+    private final long rowCount;
+
+    public ColumnarReader(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            readFully(magic, 0);
+            if (!Arrays.equals(magic.array(), MAGIC)) {
+                throw new IOException(file + " is not a columnar snapshot");
+            }
+            final ByteBuffer footerOffset = ByteBuffer.allocate(Long.BYTES);
+            readFully(footerOffset, channel.size() - Long.BYTES);
+            final long offset = footerOffset.getLong(0);
+            try (final DataInputStream footer = new DataInputStream(new BufferedInputStream(new SegmentInputStream(offset, channel.size() - offset)))) {
+                final int columnCount = footer.readInt();
+                for (int i = 0; i < columnCount; ++i) {
+                    final ColumnInfo column = new ColumnInfo(footer.readUTF(), footer.readByte(), footer.readLong(), footer.readLong(), footer.readLong());
+                    columns.put(column.name, column);
+                }
+                this.rowCount = footer.readLong();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public List<String> getColumns() {
+        return new ArrayList<>(columns.keySet());
+    }
+
+    /**
+     * Opens a cursor over some columns.
+     *
+     * @param names Column names
+     * @return Cursor with values in the order of the names
+     * @throws IOException
+     */
+    public Rows rows(String... names) throws IOException {
+        final ColumnCursor[] cursors = new ColumnCursor[names.length];
+        try {
+            for (int i = 0; i < names.length; ++i) {
+                final ColumnInfo column = columns.get(names[i]);
+                if (column == null) {
+                    throw new IllegalArgumentException("Column " + names[i] + " does not exist");
+                }
+                cursors[i] = new ColumnCursor(column);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ColumnCursor cursor : cursors) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            throw e;
+        }
+        return new Rows(cursors);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        final int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Cursor over rows of some columns, like a reader of big-sorter it returns
+     * null at the end.
+     */
+    public class Rows implements Closeable {
+
+        private final ColumnCursor[] cursors;
+        private long row = 0;
+
+        private Rows(ColumnCursor[] cursors) {
+            this.cursors = cursors;
+        }
+
+        /**
+         *
+         * @return Values of the next row or null at the end
+         * @throws IOException
+         */
+        public String[] next() throws IOException {
+            if (row >= rowCount) {
+                return null;
+            }
+            final String[] values = new String[cursors.length];
+            for (int i = 0; i < cursors.length; ++i) {
+                values[i] = cursors[i].next();
+            }
+            ++row;
+            return values;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (ColumnCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    private class ColumnCursor implements Closeable {
+
+        private final Inflater inflater = new Inflater();
+        private final DataInputStream in;
+        private final String[] dictionary;
+
+        private ColumnCursor(ColumnInfo column) throws IOException {
+            if (column.encoding == ENCODING_DICTIONARY) {
+                final Inflater dictionaryInflater = new Inflater();
+                try (final DataInputStream dis = new DataInputStream(new InflaterInputStream(new SegmentInputStream(column.offset, column.dictionaryLength), dictionaryInflater, BUFFER_SIZE))) {
+                    dictionary = new String[readVarInt(dis) + 1];
+                    for (int i = 1; i < dictionary.length; ++i) {
+                        dictionary[i] = readString(dis);
+                    }
+                } finally {
+                    dictionaryInflater.end();
+                }
+            } else {
+                dictionary = null;
+            }
+            this.in = new DataInputStream(new InflaterInputStream(new SegmentInputStream(column.offset + column.dictionaryLength, column.length - column.dictionaryLength), inflater, BUFFER_SIZE));
+        }
+
+        private String next() throws IOException {
+            return dictionary == null ? readString(in) : dictionary[readVarInt(in)];
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Reads a part of the file with positional reads, so cursors of several
+     * columns share one channel.
+     */
+    private class SegmentInputStream extends InputStream {
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long position;
+        private final long end;
+
+        private SegmentInputStream(long offset, long length) {
+            this.position = offset;
+            this.end = offset + length;
+            buffer.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+            if (position >= end) {
+                return false;
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            final int n = channel.read(buffer, position);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            position += n;
+            buffer.flip();
+            return true;
+        }
+    }
+
+    private record ColumnInfo(String name, byte encoding, long offset, long dictionaryLength, long length) {
+
+    }
+}
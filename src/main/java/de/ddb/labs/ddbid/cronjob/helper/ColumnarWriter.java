@@ -0,0 +1,289 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Writes a columnar snapshot of a dump. Every column is stored as its own
+ * deflate compressed segment, so a reader only inflates the columns it needs.
+ * Values are length-prefixed UTF-8 strings; columns with few distinct values
+ * are dictionary-encoded and store only a dictionary index per row.
+ *
+ * Layout: magic, column segments, footer (column names, encodings, offsets,
+ * lengths and row count) and the offset of the footer as last 8 bytes.
+ *
+ * @see ColumnarReader
+ */
+public class ColumnarWriter implements Closeable {
+
+    static final byte[] MAGIC = {'D', 'D', 'B', 'C', 'O', 'L', '1'};
+    static final byte ENCODING_PLAIN = 0;
+    static final byte ENCODING_DICTIONARY = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path output;
+    private final Path tmpOutput;
+    private final List<Column> columns = new ArrayList<>();
+    private long rowCount = 0;
+    private boolean closed = false;
+
+    /**
+     *
+     * @param output Output file
+     * @param header Column names
+     * @param dictionaryColumns Columns which are dictionary-encoded
+     * @throws IOException
+     */
+    public ColumnarWriter(Path output, List<String> header, Set<String> dictionaryColumns) throws IOException {
+        this.output = output;
+        this.tmpOutput = output.resolveSibling(output.getFileName() + ".tmp");
+        try {
+            for (String name : header) {
+                columns.add(new Column(name, dictionaryColumns.contains(name) ? ENCODING_DICTIONARY : ENCODING_PLAIN, output.resolveSibling(output.getFileName() + "." + columns.size() + ".tmp")));
+            }
+        } catch (IOException e) {
+            deleteSegments();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the columnar snapshot of a dump file.
+     *
+     * @param dump Compressed CSV dump with header
+     * @param output Output file
+     * @param dictionaryColumns Columns which are dictionary-encoded
+     * @return Count of rows
+     * @throws IOException
+     */
+    public static long fromDump(Path dump, Path output, Set<String> dictionaryColumns) throws IOException {
+        try (final InputStream is = Codec.open(dump);
+                final Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8);
+                final CSVParser parser = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(reader);
+                final ColumnarWriter writer = new ColumnarWriter(output, parser.getHeaderNames(), dictionaryColumns)) {
+            final String[] row = new String[parser.getHeaderNames().size()];
+            for (CSVRecord record : parser) {
+                for (int i = 0; i < row.length; ++i) {
+                    // CSV does not distinguish between empty and missing values
+                    row[i] = i < record.size() && !record.get(i).isEmpty() ? record.get(i) : null;
+                }
+                writer.addRow(row);
+            }
+            return writer.rowCount;
+        }
+    }
+
+    /**
+     * Adds a row. Null is a missing value.
+     *
+     * @param values Values in header order
+     * @throws IOException
+     */
+    public void addRow(String[] values) throws IOException {
+        if (values.length != columns.size()) {
+            throw new IllegalArgumentException("Row has " + values.length + " values, but there are " + columns.size() + " columns");
+        }
+        for (int i = 0; i < values.length; ++i) {
+            columns.get(i).add(values[i]);
+        }
+        ++rowCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (Column column : columns) {
+                column.segment.close();
+            }
+            try (final OutputStream fos = Files.newOutputStream(tmpOutput); final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE)); final DataOutputStream out = new DataOutputStream(counter)) {
+                out.write(MAGIC);
+                for (Column column : columns) {
+                    column.offset = counter.count;
+                    if (column.encoding == ENCODING_DICTIONARY) {
+                        // the dictionary is complete only now, so it's put
+                        // in front of the indexes here
+                        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                        final DeflaterOutputStream dos = new DeflaterOutputStream(new NonClosingOutputStream(counter), deflater, BUFFER_SIZE);
+                        final DataOutputStream dictionary = new DataOutputStream(dos);
+                        writeVarInt(dictionary, column.dictionary.size());
+                        for (String value : column.values) {
+                            writeString(dictionary, value);
+                        }
+                        dictionary.close();
+                        deflater.end();
+                        column.dictionaryLength = counter.count - column.offset;
+                    }
+                    Files.copy(column.file, out);
+                    column.length = counter.count - column.offset;
+                }
+                final long footerOffset = counter.count;
+                out.writeInt(columns.size());
+                for (Column column : columns) {
+                    out.writeUTF(column.name);
+                    out.writeByte(column.encoding);
+                    out.writeLong(column.offset);
+                    out.writeLong(column.dictionaryLength);
+                    out.writeLong(column.length);
+                }
+                out.writeLong(rowCount);
+                out.writeLong(footerOffset);
+            }
+            Files.move(tmpOutput, output, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            deleteSegments();
+            Files.deleteIfExists(tmpOutput);
+        }
+    }
+
+    private void deleteSegments() throws IOException {
+        for (Column column : columns) {
+            column.segment.close();
+            Files.deleteIfExists(column.file);
+        }
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Writes the byte length + 1 of a string and its UTF-8 bytes. Null is
+     * written as length 0.
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static class Column {
+
+        private final String name;
+        private final byte encoding;
+        private final Path file;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final DataOutputStream segment;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+        private long offset;
+        private long dictionaryLength = 0;
+        private long length;
+
+        private Column(String name, byte encoding, Path file) throws IOException {
+            this.name = name;
+            this.encoding = encoding;
+            this.file = file;
+            this.segment = new DataOutputStream(new DeflaterOutputStream(Files.newOutputStream(file), deflater, BUFFER_SIZE)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        private void add(String value) throws IOException {
+            if (encoding == ENCODING_PLAIN) {
+                writeString(segment, value);
+                return;
+            }
+            // index 0 is null
+            Integer index = value == null ? Integer.valueOf(0) : dictionary.get(value);
+            if (index == null) {
+                values.add(value);
+                index = values.size();
+                dictionary.put(value, index);
+            }
+            writeVarInt(segment, index);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
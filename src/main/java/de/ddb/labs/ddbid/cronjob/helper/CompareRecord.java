@@ -0,0 +1,213 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import com.github.davidmoten.bigsorter.Reader;
+import com.github.davidmoten.bigsorter.Serializer;
+import com.github.davidmoten.bigsorter.Writer;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Row of a dump for compares. The row is kept as the bytes of the file and
+ * only the id is parsed, once, into a key. Ids of 32 base32 characters are
+ * packed into three longs, so most compares are three long compares without
+ * any allocation. Other ids are compared by their bytes. Both give the order
+ * of {@link String#compareTo(String)} for ASCII ids.
+ */
+public final class CompareRecord implements Comparable<CompareRecord> {
+
+    private static final String ID_ALPHABET = "234567ABCDEFGHIJKLMNOPQRSTUVWXYZ"; // base32 alphabet in the order of String#compareTo
+    private static final int PACKED_ID_LENGTH = 32;
+    private static final int CHARS_PER_KEY = 12; // 5 bits each
+    private static final byte[] RANKS = new byte[128];
+
+    static {
+        Arrays.fill(RANKS, (byte) -1);
+        for (int i = 0; i < ID_ALPHABET.length(); ++i) {
+            RANKS[ID_ALPHABET.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final byte[] row;
+    private final byte[] id;
+    private final int idStart;
+    private final int idEnd;
+    private final boolean packed;
+    private final long key0;
+    private final long key1;
+    private final long key2;
+
+    /**
+     *
+     * @param row Row without line break
+     * @param idStart Start of the id field in the row
+     * @param idEnd End of the id field in the row
+     */
+    CompareRecord(byte[] row, int idStart, int idEnd) {
+        this.row = row;
+        if (idStart < idEnd && row[idStart] == '"') {
+            // quoted ids are unquoted once
+            this.id = unquote(row, idStart, idEnd);
+            this.idStart = 0;
+            this.idEnd = id.length;
+        } else {
+            this.id = row;
+            this.idStart = idStart;
+            this.idEnd = idEnd;
+        }
+        long k0 = 0, k1 = 0, k2 = 0;
+        boolean base32 = this.idEnd - this.idStart == PACKED_ID_LENGTH;
+        for (int i = 0; base32 && i < PACKED_ID_LENGTH; ++i) {
+            final int b = id[this.idStart + i];
+            final int rank = b >= 0 ? RANKS[b] : -1;
+            if (rank < 0) {
+                base32 = false;
+            } else if (i < CHARS_PER_KEY) {
+                k0 = k0 << 5 | rank;
+            } else if (i < 2 * CHARS_PER_KEY) {
+                k1 = k1 << 5 | rank;
+            } else {
+                k2 = k2 << 5 | rank;
+            }
+        }
+        this.packed = base32;
+        this.key0 = k0;
+        this.key1 = k1;
+        this.key2 = k2;
+    }
+
+    private static byte[] unquote(byte[] row, int start, int end) {
+        final byte[] value = new byte[end - start];
+        int length = 0;
+        for (int i = start + 1; i < end - 1; ++i) {
+            value[length++] = row[i];
+            if (row[i] == '"') {
+                ++i;
+            }
+        }
+        return Arrays.copyOf(value, length);
+    }
+
+    /**
+     *
+     * @return Bytes of the row as in the file, without line break
+     */
+    public byte[] getRow() {
+        return row;
+    }
+
+    /**
+     *
+     * @return Id, which is decoded on every call
+     */
+    public String getId() {
+        return new String(id, idStart, idEnd - idStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     *
+     * @return Count of bytes of the id
+     */
+    public int getIdLength() {
+        return idEnd - idStart;
+    }
+
+    /**
+     *
+     * @param index Index of a byte of the id
+     * @return Byte of the id
+     */
+    public byte getIdByte(int index) {
+        return id[idStart + index];
+    }
+
+    @Override
+    public int compareTo(CompareRecord other) {
+        if (packed && other.packed) {
+            int c = Long.compare(key0, other.key0);
+            if (c == 0) {
+                c = Long.compare(key1, other.key1);
+                if (c == 0) {
+                    c = Long.compare(key2, other.key2);
+                }
+            }
+            return c;
+        }
+        return Arrays.compareUnsigned(id, idStart, idEnd, other.id, other.idStart, other.idEnd);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof CompareRecord other && compareTo(other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = idStart; i < idEnd; ++i) {
+            hash = 31 * hash + id[i];
+        }
+        return hash;
+    }
+
+    /**
+     * Serializer of the rows for sorting with temporary files. The rows are
+     * written as they are, one per line, without header.
+     *
+     * @param idColumn Index of the id column
+     * @return Serializer
+     */
+    public static Serializer<CompareRecord> serializer(int idColumn) {
+        return new Serializer<>() {
+            @Override
+            public Reader<CompareRecord> createReader(InputStream in) {
+                return new CompareRecordReader(in, idColumn);
+            }
+
+            @Override
+            public Writer<CompareRecord> createWriter(OutputStream out) {
+                final OutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+                return new Writer<>() {
+                    @Override
+                    public void write(CompareRecord record) throws IOException {
+                        buffered.write(record.row);
+                        buffered.write('\n');
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        buffered.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        buffered.close();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return new String(row, StandardCharsets.UTF_8);
+    }
+}
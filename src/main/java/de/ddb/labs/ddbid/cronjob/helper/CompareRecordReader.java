@@ -0,0 +1,194 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import com.github.davidmoten.bigsorter.Reader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Reads the rows of a CSV file as {@link CompareRecord}. Rows are split at
+ * line breaks outside of quotes and the bounds of the id field are found in
+ * the same pass. No field is decoded, only the header.
+ */
+public class CompareRecordReader implements Reader<CompareRecord> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private byte[] line = new byte[1024];
+    private int position;
+    private int limit;
+    private final List<String> header;
+    private final int idColumn;
+
+    /**
+     * Reader of a file with header.
+     *
+     * @param in Decompressed file
+     * @throws IOException if the file has no id column
+     */
+    public CompareRecordReader(InputStream in) throws IOException {
+        this.in = in;
+        final int length = readLine();
+        if (length < 0) {
+            throw new IOException("File has no header");
+        }
+        try (final CSVParser parser = CSVFormat.DEFAULT.parse(new StringReader(new String(line, 0, length, StandardCharsets.UTF_8)))) {
+            final List<CSVRecord> records = parser.getRecords();
+            this.header = records.isEmpty() ? List.of() : records.get(0).toList();
+        }
+        this.idColumn = header.indexOf("id");
+        if (idColumn < 0) {
+            throw new IOException("File has no id column");
+        }
+    }
+
+    /**
+     * Reader of rows without header, e.g. temporary files of a sort.
+     *
+     * @param in Decompressed rows
+     * @param idColumn Index of the id column
+     */
+    public CompareRecordReader(InputStream in, int idColumn) {
+        this.in = in;
+        this.header = null;
+        this.idColumn = idColumn;
+    }
+
+    /**
+     *
+     * @return Column names or null if the file has no header
+     */
+    public List<String> getHeader() {
+        return header;
+    }
+
+    /**
+     *
+     * @return Index of the id column
+     */
+    public int getIdColumn() {
+        return idColumn;
+    }
+
+    /**
+     *
+     * @return Next row or null at the end, empty lines are skipped like by
+     * {@link CSVFormat#DEFAULT}
+     * @throws IOException if the file ends within quotes
+     */
+    @Override
+    public CompareRecord read() throws IOException {
+        while (true) {
+            int idStart = idColumn == 0 ? 0 : -1;
+            int idEnd = -1;
+            int field = 0;
+            boolean quoted = false;
+            int length = 0;
+            int b;
+            while ((b = next()) >= 0) {
+                if (b == '"') {
+                    quoted = !quoted;
+                } else if (!quoted) {
+                    if (b == '\n') {
+                        break;
+                    } else if (b == ',') {
+                        ++field;
+                        if (field == idColumn) {
+                            idStart = length + 1;
+                        } else if (field == idColumn + 1) {
+                            idEnd = length;
+                        }
+                    }
+                }
+                append(length++, b);
+            }
+            if (quoted) {
+                throw new IOException("EOF reached before encapsulated token finished: " + new String(line, 0, length, StandardCharsets.UTF_8));
+            }
+            if (length > 0 && line[length - 1] == '\r') {
+                --length;
+            }
+            if (length == 0) {
+                if (b < 0) {
+                    return null;
+                }
+                continue;
+            }
+            if (idStart < 0) {
+                throw new IOException("Row without id: " + new String(line, 0, length, StandardCharsets.UTF_8));
+            }
+            return new CompareRecord(Arrays.copyOf(line, length), idStart, idEnd < 0 ? length : idEnd);
+        }
+    }
+
+    /**
+     * Reads the header line.
+     *
+     * @return Length of the line or -1 at the end
+     */
+    private int readLine() throws IOException {
+        boolean quoted = false;
+        int length = 0;
+        int b;
+        while ((b = next()) >= 0 && (quoted || b != '\n')) {
+            if (b == '"') {
+                quoted = !quoted;
+            }
+            append(length++, b);
+        }
+        if (quoted) {
+            throw new IOException("EOF reached before encapsulated token finished in header");
+        }
+        if (b < 0 && length == 0) {
+            return -1;
+        }
+        return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+    }
+
+    private int next() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    private void append(int index, int b) {
+        if (index == line.length) {
+            line = Arrays.copyOf(line, line.length * 2);
+        }
+        line[index] = (byte) b;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
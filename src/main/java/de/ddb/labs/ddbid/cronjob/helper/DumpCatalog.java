@@ -0,0 +1,371 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.CMPOK_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.CMP_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.DUMPOK_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.DUMP_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.MANIFEST_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.OK_FILENAME_EXT;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-memory catalog of the valid dumps and compare files of the data paths
+ * and their manifests. A data path is listed once and listed again only after
+ * a change, so the download pages and the pipeline stages don't scan the
+ * directories on every call.
+ *
+ * Changes are reported by {@link Manifest#write(Path)} and the deletions of
+ * {@link Helper} right away and by a {@link WatchService} for all other
+ * changes, e.g. files copied into a data path. A data path without watch is
+ * listed on every call, as before.
+ *
+ * Files next to a dump, e.g. its bloom filter, are read once and read again
+ * after they were modified.
+ *
+ * The catalog itself is not written to disk. The manifests next to the files
+ * are the persistent index and a data path is listed once on startup.
+ */
+@Slf4j
+public class DumpCatalog {
+
+    private static final Pattern DUMP_PATTERN = Pattern.compile(DUMP_FILES_PATTERN);
+    private static final Pattern DUMPOK_PATTERN = Pattern.compile(DUMPOK_FILES_PATTERN);
+    private static final Pattern CMP_PATTERN = Pattern.compile(CMP_FILES_PATTERN);
+    private static final Pattern CMPOK_PATTERN = Pattern.compile(CMPOK_FILES_PATTERN);
+
+    private static final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private static final Map<WatchKey, Entry> watchedEntries = new ConcurrentHashMap<>();
+    private static WatchService watchService;
+
+    private DumpCatalog() {
+    }
+
+    /**
+     *
+     * @param dataPath Data path
+     * @param comparator Order of the files
+     * @return Dumps with manifest or OK file
+     */
+    public static Set<File> getOkDumpFiles(String dataPath, Comparator<? super File> comparator) {
+        final File dir = new File(dataPath);
+        final TreeSet<File> files = new TreeSet<>(comparator);
+        for (String name : getEntry(dir.toPath()).getListing().okDumps) {
+            files.add(new File(dir, name));
+        }
+        return files;
+    }
+
+    /**
+     *
+     * @param dataPath Data path
+     * @param comparator Order of the files
+     * @return Compare files with manifest or OK file
+     */
+    public static Set<File> getOkCmpFiles(String dataPath, Comparator<? super File> comparator) {
+        final File dir = new File(dataPath);
+        final TreeSet<File> files = new TreeSet<>(comparator);
+        for (String name : getEntry(dir.toPath()).getListing().okCmps) {
+            files.add(new File(dir, name));
+        }
+        return files;
+    }
+
+    /**
+     * Reads the manifest of a dump or compare file once.
+     *
+     * @param file Dump or compare file
+     * @return Manifest or null if the file is not complete
+     * @throws IOException
+     */
+    public static Manifest getManifest(File file) throws IOException {
+        final File absoluteFile = file.getAbsoluteFile();
+        final Entry entry = getEntry(absoluteFile.toPath().getParent());
+        final Optional<Manifest> cached = entry.manifests.get(absoluteFile.getName());
+        if (cached != null && entry.isWatched()) {
+            return cached.orElse(null);
+        }
+        final long generation = entry.getGeneration();
+        final Manifest manifest = readManifest(absoluteFile);
+        entry.putManifest(generation, absoluteFile.getName(), Optional.ofNullable(manifest));
+        return manifest;
+    }
+
+    /**
+     * Reads a file of a data path once, e.g. the bloom filter of a dump. The
+     * file is read again after it was modified.
+     *
+     * @param <T> Type of the content
+     * @param file File
+     * @param type Type of the content
+     * @param reader Reads the file
+     * @return Content of the file
+     * @throws IOException
+     */
+    public static <T> T getFile(File file, Class<T> type, ContentReader<T> reader) throws IOException {
+        final File absoluteFile = file.getAbsoluteFile();
+        final Entry entry = getEntry(absoluteFile.toPath().getParent());
+        final long lastModified = absoluteFile.lastModified();
+        final long length = absoluteFile.length();
+        final CachedFile cached = entry.files.get(absoluteFile.getName());
+        if (cached != null && cached.lastModified() == lastModified && cached.length() == length && type.isInstance(cached.content())) {
+            return type.cast(cached.content());
+        }
+        final T content = reader.read(absoluteFile.toPath());
+        entry.files.put(absoluteFile.getName(), new CachedFile(lastModified, length, content));
+        return content;
+    }
+
+    /**
+     * Drops the catalog of a data path, so it's listed again on the next call.
+     *
+     * @param dataPath Data path
+     */
+    public static void invalidate(Path dataPath) {
+        final Entry entry = entries.get(normalize(dataPath));
+        if (entry != null) {
+            entry.invalidate();
+        }
+    }
+
+    private static Entry getEntry(Path dataPath) {
+        return entries.computeIfAbsent(normalize(dataPath), Entry::new);
+    }
+
+    private static Path normalize(Path dataPath) {
+        return dataPath.toAbsolutePath().normalize();
+    }
+
+    private static Manifest readManifest(File file) throws IOException {
+        final String baseName = Codec.baseName(file.getAbsolutePath());
+        final Path manifestFile = Path.of(baseName + MANIFEST_FILENAME_EXT);
+        if (manifestFile.toFile().exists()) {
+            return Manifest.read(manifestFile);
+        }
+        final Path okFile = Path.of(baseName + OK_FILENAME_EXT);
+        if (okFile.toFile().exists()) {
+            return Manifest.fromOkFile(okFile);
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param okFileName Name of an OK file or manifest
+     * @return Name of its dump or compare file without extension
+     */
+    private static String getOkBaseName(String okFileName) {
+        if (okFileName.endsWith(MANIFEST_FILENAME_EXT)) {
+            return okFileName.substring(0, okFileName.length() - MANIFEST_FILENAME_EXT.length());
+        }
+        return okFileName.substring(0, okFileName.length() - OK_FILENAME_EXT.length());
+    }
+
+    /**
+     * Registers a data path at the watch service, which is started with the
+     * first data path.
+     *
+     * @return true if changes of the data path are watched
+     */
+    private static synchronized boolean watch(Entry entry) {
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                final Thread thread = new Thread(DumpCatalog::processEvents, "dump-catalog");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            final WatchKey key = entry.dataPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedEntries.put(key, entry);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Could not watch {}. It's listed on every call. {}", entry.dataPath, e.getMessage());
+            return false;
+        }
+    }
+
+    private static void processEvents() {
+        while (true) {
+            final WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            final Entry entry = watchedEntries.get(key);
+            if (entry != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || isCataloged(event.context().toString())) {
+                        entry.invalidate();
+                    }
+                }
+            }
+            if (!key.reset()) {
+                // the data path was deleted, so it's registered again with
+                // the next listing
+                watchedEntries.remove(key);
+                if (entry != null) {
+                    entry.watched = false;
+                    entry.invalidate();
+                }
+            }
+        }
+    }
+
+    private static boolean isCataloged(String fileName) {
+        return DUMP_PATTERN.matcher(fileName).matches() || DUMPOK_PATTERN.matcher(fileName).matches()
+                || CMP_PATTERN.matcher(fileName).matches() || CMPOK_PATTERN.matcher(fileName).matches();
+    }
+
+    @FunctionalInterface
+    public interface ContentReader<T> {
+
+        T read(Path path) throws IOException;
+    }
+
+    private record CachedFile(long lastModified, long length, Object content) {
+
+    }
+
+    /**
+     * Files of a data path at the time of a listing.
+     */
+    private static class Listing {
+
+        private final List<String> okDumps;
+        private final List<String> okCmps;
+
+        private Listing(List<String> okDumps, List<String> okCmps) {
+            this.okDumps = okDumps;
+            this.okCmps = okCmps;
+        }
+    }
+
+    private static class Entry {
+
+        private final Path dataPath;
+        private final Map<String, Optional<Manifest>> manifests = new ConcurrentHashMap<>();
+        private final Map<String, CachedFile> files = new ConcurrentHashMap<>();
+        private volatile Listing listing;
+        private volatile boolean watched;
+        private volatile boolean unwatchable;
+        private long generation; // count of invalidations
+
+        private Entry(Path dataPath) {
+            this.dataPath = dataPath;
+        }
+
+        private boolean isWatched() {
+            if (!watched && !unwatchable && dataPath.toFile().isDirectory()) {
+                watched = watch(this);
+                unwatchable = !watched;
+            }
+            return watched;
+        }
+
+        private synchronized void invalidate() {
+            ++generation;
+            listing = null;
+            manifests.clear();
+            // files are checked by their modification time, only deleted
+            // files are dropped
+            files.keySet().removeIf(name -> !dataPath.resolve(name).toFile().exists());
+        }
+
+        private synchronized long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Caches a manifest, unless the data path was changed while it was
+         * read.
+         */
+        private synchronized void putManifest(long readGeneration, String name, Optional<Manifest> manifest) {
+            if (generation == readGeneration) {
+                manifests.put(name, manifest);
+            }
+        }
+
+        private Listing getListing() {
+            // registered before the listing, so no change is lost
+            final boolean current = isWatched();
+            Listing l = listing;
+            if (l == null || !current) {
+                final long listGeneration = getGeneration();
+                l = list();
+                // a listing is outdated by a change while listing
+                synchronized (this) {
+                    if (current && generation == listGeneration) {
+                        listing = l;
+                    }
+                }
+            }
+            return l;
+        }
+
+        /**
+         * Lists the data path once and matches dumps and compare files with
+         * their manifest or OK file.
+         */
+        private Listing list() {
+            final String[] names = dataPath.toFile().list();
+            if (names == null) {
+                return new Listing(List.of(), List.of());
+            }
+            final Set<String> okBaseNames = new HashSet<>();
+            for (String name : names) {
+                if (DUMPOK_PATTERN.matcher(name).matches() || CMPOK_PATTERN.matcher(name).matches()) {
+                    okBaseNames.add(getOkBaseName(name));
+                }
+            }
+            final List<String> okDumps = new ArrayList<>();
+            final List<String> okCmps = new ArrayList<>();
+            for (String name : names) {
+                if (!okBaseNames.contains(Codec.baseName(name))) {
+                    continue;
+                }
+                if (DUMP_PATTERN.matcher(name).matches()) {
+                    okDumps.add(name);
+                } else if (CMP_PATTERN.matcher(name).matches()) {
+                    okCmps.add(name);
+                }
+            }
+            log.debug("Listed {} with {} dumps and {} compare files", dataPath, okDumps.size(), okCmps.size());
+            return new Listing(Collections.unmodifiableList(okDumps), Collections.unmodifiableList(okCmps));
+        }
+    }
+}
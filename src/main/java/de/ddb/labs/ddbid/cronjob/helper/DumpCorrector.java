@@ -16,7 +16,6 @@
 package de.ddb.labs.ddbid.cronjob.helper;
 
 import java.io.BufferedWriter;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -28,8 +27,6 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
@@ -46,11 +43,10 @@ public class DumpCorrector {
     private final static String OUTPUT_FILE = "2022-03-13.csv_CORRECTED.gz";
 
     public static void main(String[] args) throws IOException {
-        try (final InputStream fileStream = new FileInputStream(INPUT_FILE);
-                final InputStream gzipStream = new GZIPInputStream(fileStream); 
-                final InputStreamReader decoder = new InputStreamReader(gzipStream, StandardCharsets.UTF_8); 
+        try (final InputStream fileStream = Codec.open(Path.of(INPUT_FILE));
+                final InputStreamReader decoder = new InputStreamReader(fileStream, StandardCharsets.UTF_8); 
                 final OutputStream os = Files.newOutputStream(Path.of(OUTPUT_FILE), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE); 
-                final OutputStreamWriter ow = new OutputStreamWriter(new GZIPOutputStream(os), StandardCharsets.UTF_8);
+                final OutputStreamWriter ow = new OutputStreamWriter(new MemberOutputStream(os), StandardCharsets.UTF_8);
                 final BufferedWriter bw = new BufferedWriter(ow);
                 final CSVPrinter csvPrinter = new CSVPrinter(bw, CSVFormat.DEFAULT.withHeader("timestamp", "id", "status", "provider_item_id", "dataset_id", "label", "provider_id", "sector_fct", "supplier_id"))) {
 
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+
+/**
+ * Writes rows of a dump as CSV, compressed with the codec of the file
+ * extension. With a {@link BlockIndex} the members are row-aligned and every
+ * member is added to the index. With a {@link BloomFilter} the id of every row
+ * is added to the filter. Every row is formatted on its own and written to
+ * the compressing stream as a whole, so the end of a row is known without
+ * flushing.
+ */
+public class DumpWriter implements Closeable, Flushable {
+
+    private final MemberOutputStream memberStream;
+    private final StringBuilder row = new StringBuilder();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer rowBytes = ByteBuffer.allocate(8192);
+    private final List<String> header;
+    private final int idColumn;
+    private final boolean indexed;
+    private final BloomFilter bloomFilter;
+
+    /**
+     *
+     * @param output Output file
+     * @param offset Length of the file to append to or 0 for a new file
+     * @param threads Count of compressing threads
+     * @param blockSize Uncompressed size of a block
+     * @param header CSV header
+     * @param index Index of the members or null
+     * @param bloomFilter Filter of the ids or null
+     * @throws IOException
+     */
+    public DumpWriter(Path output, long offset, int threads, int blockSize, List<String> header, BlockIndex index, BloomFilter bloomFilter) throws IOException {
+        this.header = header;
+        this.idColumn = header.indexOf("id");
+        this.indexed = index != null && idColumn >= 0;
+        this.bloomFilter = idColumn >= 0 ? bloomFilter : null;
+        final Codec codec = Codec.fromFileName(output.getFileName().toString());
+        if (codec == null) {
+            throw new IOException("Unknown compression of " + output);
+        }
+        final OutputStream os = Files.newOutputStream(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, offset == 0 ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND);
+        this.memberStream = new MemberOutputStream(os, codec, offset, threads, blockSize, indexed ? index::add : null);
+    }
+
+    public void printHeader() throws IOException {
+        writeRow(header);
+    }
+
+    /**
+     * Prints a row. Null is printed as empty value.
+     *
+     * @param values Values in header order
+     * @throws IOException
+     */
+    public void printRecord(List<?> values) throws IOException {
+        writeRow(values);
+        if (bloomFilter != null) {
+            bloomFilter.put(String.valueOf(values.get(idColumn)));
+        }
+        if (indexed) {
+            memberStream.endRow(String.valueOf(values.get(idColumn)));
+        }
+    }
+
+    public void printRecord(Object... values) throws IOException {
+        printRecord(Arrays.asList(values));
+    }
+
+    /**
+     * Finishes the current member, so {@link #getPosition()} is a
+     * position where decompressing can start.
+     *
+     * @throws IOException
+     */
+    public void endMember() throws IOException {
+        memberStream.endMember();
+        memberStream.flush();
+    }
+
+    /**
+     *
+     * @return Count of written compressed bytes
+     */
+    public long getPosition() {
+        return memberStream.getPosition();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        memberStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        memberStream.close();
+    }
+
+    private void writeRow(List<?> values) throws IOException {
+        row.setLength(0);
+        CSVFormat.DEFAULT.printRecord(row, values.toArray());
+        final int maxBytes = (int) Math.ceil(row.length() * (double) encoder.maxBytesPerChar());
+        if (rowBytes.capacity() < maxBytes) {
+            rowBytes = ByteBuffer.allocate(maxBytes);
+        }
+        rowBytes.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(row), rowBytes, true);
+        encoder.flush(rowBytes);
+        memberStream.write(rowBytes.array(), 0, rowBytes.position());
+    }
+}
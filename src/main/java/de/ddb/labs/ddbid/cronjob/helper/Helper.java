@@ -15,18 +15,30 @@
  */
 package de.ddb.labs.ddbid.cronjob.helper;
 
-import static de.ddb.labs.ddbid.cronjob.objects.Compare.CMPOK_FILES_PATTERN;
-import static de.ddb.labs.ddbid.cronjob.objects.Compare.CMP_FILES_PATTERN;
-import static de.ddb.labs.ddbid.cronjob.objects.Compare.DUMPOK_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.BITMAP_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.BLOOM_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.BLOOM_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.CHECKPOINT_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.CHECKPOINT_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.COLUMNAR_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.COLUMNAR_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.DELTA_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.DUMPPART_FILES_PATTERN;
 import static de.ddb.labs.ddbid.cronjob.objects.Compare.DUMP_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.INDEX_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.INDEX_FILES_PATTERN;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.MANIFEST_FILENAME_EXT;
 import static de.ddb.labs.ddbid.cronjob.objects.Compare.OK_FILENAME_EXT;
-import static de.ddb.labs.ddbid.cronjob.objects.Compare.OUTPUT_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Dump.FORMAT_CSV;
+import static de.ddb.labs.ddbid.cronjob.objects.Dump.FORMAT_JSON;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.LocalDate;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.regex.Pattern;
@@ -39,74 +51,29 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class Helper {
 
-    public static Set<File> getOkCmpFiles(String dataPath, Comparator comparator) {
-
-        // dump files
-        final Pattern dumpPattern = Pattern.compile(CMP_FILES_PATTERN);
-        final FileFilter dumpFileFilter = (File pathname) -> {
-            final String fileName = pathname.getName();
-            return dumpPattern.matcher(fileName).matches();
-        };
-        final File[] dumpfiles = new File(dataPath).listFiles(dumpFileFilter);
-        final TreeSet<File> dumpfilesSorted = new TreeSet<>(comparator);
-        if (dumpfiles != null) {
-            dumpfilesSorted.addAll(Arrays.asList(dumpfiles));
-        }
-
-        //ok files
-        final Pattern okfilePattern = Pattern.compile(CMPOK_FILES_PATTERN);
-        final FileFilter okfileFileFilter = (File pathname) -> {
-            final String fileName = pathname.getName();
-            return okfilePattern.matcher(fileName).matches();
-        };
-        final File[] okfilefiles = new File(dataPath).listFiles(okfileFileFilter);
-        // final TreeSet<File> okfilefilesSorted = new TreeSet<>(Arrays.asList(okfilefiles));
-
-        final Iterator<File> dumpfilesSortedIt = dumpfilesSorted.iterator();
-        while (dumpfilesSortedIt.hasNext()) {
-            final File dump = dumpfilesSortedIt.next();
-            final String dumpFileName = dump.getName().replace(OUTPUT_FILENAME_EXT, OK_FILENAME_EXT);
-            if (!Arrays.stream(okfilefiles).map(p -> p.getName()).anyMatch(dumpFileName::equals)) {
-                dumpfilesSortedIt.remove();
-            }
-        }
-
-        return dumpfilesSorted;
+    public static Set<File> getOkCmpFiles(String dataPath, Comparator<? super File> comparator) {
+        return DumpCatalog.getOkCmpFiles(dataPath, comparator);
     }
 
-    public static Set<File> getOkDumpFiles(String dataPath, Comparator comparator) {
+    public static Set<File> getOkDumpFiles(String dataPath, Comparator<? super File> comparator) {
+        return DumpCatalog.getOkDumpFiles(dataPath, comparator);
+    }
 
-        // dump files
-        final Pattern dumpPattern = Pattern.compile(DUMP_FILES_PATTERN);
-        final FileFilter dumpFileFilter = (File pathname) -> {
-            final String fileName = pathname.getName();
-            return dumpPattern.matcher(fileName).matches();
-        };
-        final File[] dumpfiles = new File(dataPath).listFiles(dumpFileFilter);
-        final TreeSet<File> dumpfilesSorted = new TreeSet<>(comparator);
-        if (dumpfiles != null) {
-            dumpfilesSorted.addAll(Arrays.asList(dumpfiles));
+    /**
+     * Normalizes the configured response format of dumps. Unknown formats fall
+     * back to JSON.
+     *
+     * @param format Configured format
+     * @return json or csv
+     */
+    public static String getResponseFormat(String format) {
+        if (format != null && format.trim().equalsIgnoreCase(FORMAT_CSV)) {
+            return FORMAT_CSV;
         }
-
-        //ok files
-        final Pattern okfilePattern = Pattern.compile(DUMPOK_FILES_PATTERN);
-        final FileFilter okfileFileFilter = (File pathname) -> {
-            final String fileName = pathname.getName();
-            return okfilePattern.matcher(fileName).matches();
-        };
-        final File[] okfilefiles = new File(dataPath).listFiles(okfileFileFilter);
-        // final TreeSet<File> okfilefilesSorted = new TreeSet<>(Arrays.asList(okfilefiles));
-
-        final Iterator<File> dumpfilesSortedIt = dumpfilesSorted.iterator();
-        while (dumpfilesSortedIt.hasNext()) {
-            final File dump = dumpfilesSortedIt.next();
-            final String dumpFileName = dump.getName().replace(OUTPUT_FILENAME_EXT, OK_FILENAME_EXT);
-            if (!Arrays.stream(okfilefiles).map(p -> p.getName()).anyMatch(dumpFileName::equals)) {
-                dumpfilesSortedIt.remove();
-            }
+        if (format != null && !format.trim().equalsIgnoreCase(FORMAT_JSON)) {
+            log.warn("Response format {} is not supported. Use {}.", format, FORMAT_JSON);
         }
-
-        return dumpfilesSorted;
+        return FORMAT_JSON;
     }
 
     /**
@@ -117,36 +84,81 @@ public class Helper {
      * @param date
      */
     public static void deleteOlderDumps(String dataPath, LocalDate date) {
+        deleteOlderDumps(dataPath, date, 0);
+    }
+
+    /**
+     * Deletes dumps older than a date, compared by filename date and NOT file
+     * date. Base snapshots of the archive are kept.
+     *
+     * @param dataPath
+     * @param date
+     * @param archiveBaseMonths Months between two base snapshots of the
+     * archive, 0 keeps none
+     */
+    public static void deleteOlderDumps(String dataPath, LocalDate date, int archiveBaseMonths) {
         log.info("Start to delete old dumps...");
         deleteInvalidDumps(dataPath);
 
         final Set<File> okDumps = getOkDumpFiles(dataPath, Comparator.naturalOrder());
+        final Set<File> bases = Archive.getBases(okDumps, archiveBaseMonths);
         for (File f : okDumps) {
             final String d = f.getName().substring(0, 10);
             final LocalDate ld = LocalDate.parse(d);
-            if (ld.isBefore(date)) {
+            if (ld.isBefore(date) && bases.contains(f)) {
+                log.info("Keep dump {} as base snapshot of the archive", f.getAbsoluteFile());
+            } else if (ld.isBefore(date)) {
                 log.info("Delete dump {}, because {} is before {}", f.getAbsoluteFile(), ld.toString(), date.toString());
-                final String cmpFileString = f.getAbsolutePath().replace(OUTPUT_FILENAME_EXT, OK_FILENAME_EXT);
-                final File cmpFile = new File(cmpFileString);
+                final String baseName = Codec.baseName(f.getAbsolutePath());
+                final File cmpFile = new File(baseName + OK_FILENAME_EXT);
+                final File manifestFile = new File(baseName + MANIFEST_FILENAME_EXT);
+                final File columnarFile = new File(baseName + COLUMNAR_FILENAME_EXT);
+                final File indexFile = new File(baseName + INDEX_FILENAME_EXT);
+                final File bloomFile = new File(baseName + BLOOM_FILENAME_EXT);
                 if (f.delete()) {
                     f.deleteOnExit();
                 }
+                if (columnarFile.exists() && !columnarFile.delete()) {
+                    columnarFile.deleteOnExit();
+                }
+                if (indexFile.exists() && !indexFile.delete()) {
+                    indexFile.deleteOnExit();
+                }
+                if (bloomFile.exists() && !bloomFile.delete()) {
+                    bloomFile.deleteOnExit();
+                }
                 
                 if (cmpFile.delete()) {
                     cmpFile.deleteOnExit();
                 }
+                if (manifestFile.delete()) {
+                    manifestFile.deleteOnExit();
+                }
             }
         }
+        DumpCatalog.invalidate(Path.of(dataPath));
     }
 
     /**
-     * Deletes invalid dumps
+     * Deletes invalid dumps. Dumps and shard files with a checkpoint are kept,
+     * because they can be resumed.
      *
      * @param dataPath
      */
     public static void deleteInvalidDumps(String dataPath) {
         final Set<File> okDumps = getOkDumpFiles(dataPath, Comparator.naturalOrder());
 
+        // checkpoints without dump file are useless
+        final Set<String> checkpoints = new TreeSet<>();
+        for (File cf : getCheckpointFiles(dataPath)) {
+            final List<File> dfs = getDumpFiles(cf.getParentFile(), cf.getName().replace(CHECKPOINT_FILENAME_EXT, ""));
+            dfs.removeIf(df -> !df.exists());
+            dfs.forEach(df -> checkpoints.add(df.getName()));
+            if (dfs.isEmpty() && !cf.delete()) {
+                cf.deleteOnExit();
+            }
+        }
+
         // dump files
         final Pattern dumpPattern = Pattern.compile(DUMP_FILES_PATTERN);
         final FileFilter dumpFileFilter = (File pathname) -> {
@@ -156,13 +168,202 @@ public class Helper {
         final File[] dumpfiles = new File(dataPath).listFiles(dumpFileFilter);
         if (dumpfiles != null) {
             for (File df : dumpfiles) {
-                if (!okDumps.contains(df)) {
+                if (!okDumps.contains(df) && !checkpoints.contains(df.getName())) {
                     if (df.delete()) {
                         df.deleteOnExit();
                     }
                 }
             }
         }
+
+        // left over shard files of a cancelled dump
+        final Pattern partPattern = Pattern.compile(DUMPPART_FILES_PATTERN);
+        final File[] partfiles = new File(dataPath).listFiles((File pathname) -> partPattern.matcher(pathname.getName()).matches());
+        if (partfiles != null) {
+            for (File pf : partfiles) {
+                if (!checkpoints.contains(pf.getName()) && !pf.delete()) {
+                    pf.deleteOnExit();
+                }
+            }
+        }
+
+        // columnar snapshots without valid dump and left over temporary files
+        final Pattern columnarPattern = Pattern.compile(COLUMNAR_FILES_PATTERN);
+        final File[] columnarfiles = new File(dataPath).listFiles((File pathname) -> columnarPattern.matcher(pathname.getName()).matches());
+        if (columnarfiles != null) {
+            for (File cf : columnarfiles) {
+                final List<File> dfs = getDumpFiles(cf.getParentFile(), cf.getName().substring(0, 10));
+                if ((!cf.getName().endsWith(COLUMNAR_FILENAME_EXT) || dfs.stream().noneMatch(okDumps::contains)) && !cf.delete()) {
+                    cf.deleteOnExit();
+                }
+            }
+        }
+
+        // indexes without valid or resumable dump
+        final Pattern indexPattern = Pattern.compile(INDEX_FILES_PATTERN);
+        final File[] indexfiles = new File(dataPath).listFiles((File pathname) -> indexPattern.matcher(pathname.getName()).matches());
+        if (indexfiles != null) {
+            for (File xf : indexfiles) {
+                final List<File> dfs = getDumpFiles(xf.getParentFile(), xf.getName().replace(INDEX_FILENAME_EXT, ""));
+                if ((!xf.getName().endsWith(INDEX_FILENAME_EXT) || dfs.stream().noneMatch(df -> okDumps.contains(df) || checkpoints.contains(df.getName()))) && !xf.delete()) {
+                    xf.deleteOnExit();
+                }
+            }
+        }
+
+        // bloom filters without valid dump and left over temporary files
+        final Pattern bloomPattern = Pattern.compile(BLOOM_FILES_PATTERN);
+        final File[] bloomfiles = new File(dataPath).listFiles((File pathname) -> bloomPattern.matcher(pathname.getName()).matches());
+        if (bloomfiles != null) {
+            for (File bf : bloomfiles) {
+                final List<File> dfs = getDumpFiles(bf.getParentFile(), bf.getName().substring(0, 10));
+                if ((!bf.getName().endsWith(BLOOM_FILENAME_EXT) || dfs.stream().noneMatch(okDumps::contains)) && !bf.delete()) {
+                    bf.deleteOnExit();
+                }
+            }
+        }
+
+        // left over temporary snapshot bitmaps, the bitmaps are kept with
+        // the compare files, because they are small
+        final File[] bitmapTmpFiles = new File(dataPath).listFiles((File pathname) -> pathname.getName().endsWith(BITMAP_FILENAME_EXT + ".tmp"));
+        if (bitmapTmpFiles != null) {
+            for (File bf : bitmapTmpFiles) {
+                if (!bf.delete()) {
+                    bf.deleteOnExit();
+                }
+            }
+        }
+
+        // left over temporary manifests
+        final File[] manifestTmpFiles = new File(dataPath).listFiles((File pathname) -> pathname.getName().endsWith(MANIFEST_FILENAME_EXT + ".tmp"));
+        if (manifestTmpFiles != null) {
+            for (File mf : manifestTmpFiles) {
+                if (!mf.delete()) {
+                    mf.deleteOnExit();
+                }
+            }
+        }
+
+        // left over files of a cancelled incremental dump
+        final Pattern deltaPattern = Pattern.compile(DELTA_FILES_PATTERN);
+        final File[] deltafiles = new File(dataPath).listFiles((File pathname) -> deltaPattern.matcher(pathname.getName()).matches());
+        if (deltafiles != null) {
+            for (File df : deltafiles) {
+                if (!df.delete()) {
+                    df.deleteOnExit();
+                }
+            }
+        }
+        DumpCatalog.invalidate(Path.of(dataPath));
+    }
+
+    /**
+     * Opens the bloom filter of a dump. The filter is mapped once and mapped
+     * again after the file was modified.
+     *
+     * @param dump Dump file
+     * @return Memory-mapped filter or null if the dump has none
+     */
+    public static BloomFilter getBloomFilter(File dump) {
+        final File bloomFile = new File(Codec.baseName(dump.getAbsolutePath()) + BLOOM_FILENAME_EXT);
+        if (!bloomFile.exists()) {
+            return null;
+        }
+        try {
+            return DumpCatalog.getFile(bloomFile, BloomFilter.class, BloomFilter::open);
+        } catch (IOException e) {
+            log.warn("Could not open bloom filter {}. {}", bloomFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the snapshot bitmap of a date. The bitmap is read once and read
+     * again after the file was modified, so it must not be changed.
+     *
+     * @param dataPath Data path
+     * @param date Date of the dump, yyyy-MM-dd
+     * @return Bitmap or null if the date has none
+     */
+    public static SnapshotBitmap getSnapshotBitmap(String dataPath, String date) {
+        final File bitmapFile = new File(dataPath + date + BITMAP_FILENAME_EXT);
+        if (!bitmapFile.exists()) {
+            return null;
+        }
+        try {
+            return DumpCatalog.getFile(bitmapFile, SnapshotBitmap.class, SnapshotBitmap::read);
+        } catch (IOException e) {
+            log.warn("Could not read snapshot bitmap {}. {}", bitmapFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the manifest of a dump or compare file. Files of older versions
+     * only have an OK file with the timestamp.
+     *
+     * @param file Dump or compare file
+     * @return Manifest or null if the file is not complete
+     * @throws IOException
+     */
+    public static Manifest getManifest(File file) throws IOException {
+        return DumpCatalog.getManifest(file);
+    }
+
+    /**
+     * Searches for a cancelled dump, which can be resumed.
+     *
+     * @param dataPath
+     * @return Base name (yyyy-MM-dd) of the latest dump with checkpoints and
+     * without OK file or null
+     */
+    public static String getResumableDump(String dataPath) {
+        String resumable = null;
+        for (File cf : getCheckpointFiles(dataPath)) {
+            final String baseName = cf.getName().substring(0, 10);
+            if (new File(cf.getParentFile(), baseName + MANIFEST_FILENAME_EXT).exists() || new File(cf.getParentFile(), baseName + OK_FILENAME_EXT).exists()) {
+                continue;
+            }
+            if (resumable == null || baseName.compareTo(resumable) > 0) {
+                resumable = baseName;
+            }
+        }
+        return resumable;
+    }
+
+    /**
+     * Deletes all checkpoints of a dump, including the ones of its shards.
+     *
+     * @param dataPath
+     * @param dump
+     */
+    public static void deleteCheckpoints(String dataPath, File dump) {
+        final String baseName = dump.getName().substring(0, dump.getName().indexOf('.') + 1);
+        for (File cf : getCheckpointFiles(dataPath)) {
+            if (cf.getName().startsWith(baseName) && !cf.delete()) {
+                cf.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param dir Directory
+     * @param baseName File name without extension, e.g. yyyy-MM-dd
+     * @return Possible dump files with every codec
+     */
+    private static List<File> getDumpFiles(File dir, String baseName) {
+        final List<File> files = new ArrayList<>();
+        for (Codec codec : Codec.values()) {
+            files.add(new File(dir, baseName + codec.getExtension()));
+        }
+        return files;
+    }
+
+    private static File[] getCheckpointFiles(String dataPath) {
+        final Pattern checkpointPattern = Pattern.compile(CHECKPOINT_FILES_PATTERN);
+        final File[] checkpointFiles = new File(dataPath).listFiles((File pathname) -> checkpointPattern.matcher(pathname.getName()).matches());
+        return checkpointFiles == null ? new File[0] : checkpointFiles;
     }
 
 }
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.MurmurHash3;
+
+/**
+ * Append-only dictionary of all ids ever dumped into a data path. Every id
+ * gets a stable ordinal, which never changes, even if the id is deleted.
+ *
+ * The dictionary consists of three files:
+ * <ul>
+ * <li>&lt;name&gt;: the ids in the order of their ordinals, one per line</li>
+ * <li>&lt;name&gt;.off: the offset of every id in the first file as
+ * big-endian long</li>
+ * <li>&lt;name&gt;.hash: a memory-mapped open addressing hash table. A header
+ * of magic, version, count and capacity is followed by one long per slot
+ * with the 32 bit hash of the id and the ordinal plus one. The hash is
+ * compared first, so an id is only read for verification.</li>
+ * </ul>
+ *
+ * An id is appended to the first file, then its offset, then it's put into
+ * the hash table and finally the count is updated. Ids after the count are
+ * indexed again on open, so a cancelled update never assigns an id twice.
+ */
+@Slf4j
+public class IdDictionary implements Closeable {
+
+    private static final int MAGIC = 0x44444944; // DDID
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int MAX_ID_LENGTH = 4096;
+
+    private final Path path;
+    private final FileChannel ids;
+    private final FileChannel offsets;
+    private FileChannel hashChannel;
+    private MappedByteBuffer hashBuffer;
+    private LongBuffer slots;
+    private int capacity;
+    private int count;
+    private long idsSize;
+
+    private IdDictionary(Path path) throws IOException {
+        this.path = path;
+        this.ids = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.offsets = FileChannel.open(sibling(".off"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens or creates a dictionary.
+     *
+     * @param path Dictionary file
+     * @return Dictionary
+     * @throws IOException
+     */
+    public static IdDictionary open(Path path) throws IOException {
+        final IdDictionary dictionary = new IdDictionary(path);
+        try {
+            dictionary.init();
+        } catch (IOException e) {
+            dictionary.close();
+            throw e;
+        }
+        return dictionary;
+    }
+
+    private void init() throws IOException {
+        final Path hashFile = sibling(".hash");
+        if (Files.exists(hashFile)) {
+            mapHash(hashFile);
+            if (hashBuffer.capacity() < HEADER_SIZE || hashBuffer.getInt(0) != MAGIC || hashBuffer.getInt(4) != VERSION) {
+                throw new IOException(hashFile + " is not an id dictionary");
+            }
+            count = hashBuffer.getInt(8);
+            capacity = hashBuffer.getInt(12);
+        } else {
+            writeHash(hashFile, INITIAL_CAPACITY, new long[0]);
+            mapHash(hashFile);
+            count = 0;
+            capacity = INITIAL_CAPACITY;
+        }
+
+        // ids with an offset, but without count, of a cancelled update
+        final int written = (int) (offsets.size() / Long.BYTES);
+        if (written < count) {
+            throw new IOException("Id dictionary " + path + " has " + written + " ids, but " + count + " are indexed");
+        }
+        offsets.truncate((long) written * Long.BYTES);
+        idsSize = written == 0 ? 0 : getOffset(written - 1) + readId(written - 1).length + 1;
+        ids.truncate(idsSize);
+        if (written > count) {
+            log.info("Index {} ids of a cancelled update of {}", written - count, path);
+            for (int ordinal = count; ordinal < written; ++ordinal) {
+                final byte[] id = readId(ordinal);
+                if (find(id, hash(id)) < 0) {
+                    growIfFull();
+                    put(hash(id), ordinal);
+                }
+                count = ordinal + 1;
+            }
+            hashBuffer.putInt(8, count);
+        }
+    }
+
+    /**
+     *
+     * @param id Id
+     * @return Ordinal of the id, which is added if it's new
+     * @throws IOException
+     */
+    public synchronized int getOrAdd(String id) throws IOException {
+        final byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(bytes);
+        final int ordinal = find(bytes, hash);
+        if (ordinal >= 0) {
+            return ordinal;
+        }
+        if (bytes.length > MAX_ID_LENGTH || id.indexOf('\n') >= 0) {
+            throw new IOException("Invalid id " + id);
+        }
+        if (count == Integer.MAX_VALUE) {
+            throw new IOException("Id dictionary " + path + " is full");
+        }
+        growIfFull();
+        final ByteBuffer line = ByteBuffer.allocate(bytes.length + 1).put(bytes).put((byte) '\n').flip();
+        while (line.hasRemaining()) {
+            idsSize += ids.write(line, idsSize);
+        }
+        final ByteBuffer offset = ByteBuffer.allocate(Long.BYTES).putLong(0, idsSize - bytes.length - 1);
+        while (offset.hasRemaining()) {
+            offsets.write(offset, (long) count * Long.BYTES + offset.position());
+        }
+        put(hash, count);
+        hashBuffer.putInt(8, ++count);
+        return count - 1;
+    }
+
+    /**
+     *
+     * @param id Id
+     * @return Ordinal of the id or -1 if it's not in the dictionary
+     * @throws IOException
+     */
+    public synchronized int lookup(String id) throws IOException {
+        final byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        return find(bytes, hash(bytes));
+    }
+
+    /**
+     *
+     * @param ordinal Ordinal
+     * @return Id of the ordinal
+     * @throws IOException
+     */
+    public synchronized String get(int ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= count) {
+            throw new IndexOutOfBoundsException("Ordinal " + ordinal + " is not in " + path);
+        }
+        return new String(readId(ordinal), StandardCharsets.UTF_8);
+    }
+
+    /**
+     *
+     * @return Count of ids
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (hashBuffer != null) {
+                hashBuffer.force();
+            }
+            ids.force(false);
+            offsets.force(false);
+        } finally {
+            ids.close();
+            offsets.close();
+            if (hashChannel != null) {
+                hashChannel.close();
+            }
+        }
+    }
+
+    private int find(byte[] id, int hash) throws IOException {
+        final int mask = capacity - 1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            final long entry = slots.get(slot);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((int) (entry >>> 32) == hash) {
+                final int ordinal = (int) entry - 1;
+                if (Arrays.equals(id, readId(ordinal))) {
+                    return ordinal;
+                }
+            }
+        }
+    }
+
+    private void put(int hash, int ordinal) {
+        final int mask = capacity - 1;
+        int slot = hash & mask;
+        while (slots.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots.put(slot, ((long) hash << 32) | (ordinal + 1L));
+    }
+
+    /**
+     * Doubles the hash table if it's half full. The larger table is written to
+     * a temporary file first and moved in place afterwards.
+     */
+    private void growIfFull() throws IOException {
+        if (count + 1 <= capacity / 2) {
+            return;
+        }
+        final long[] entries = new long[capacity];
+        int n = 0;
+        for (int slot = 0; slot < capacity; ++slot) {
+            final long entry = slots.get(slot);
+            if (entry != 0) {
+                entries[n++] = entry;
+            }
+        }
+        final Path hashFile = sibling(".hash");
+        final Path tmp = sibling(".hash.tmp");
+        writeHash(tmp, capacity * 2, Arrays.copyOf(entries, n));
+        hashChannel.close();
+        Files.move(tmp, hashFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mapHash(hashFile);
+        capacity = hashBuffer.getInt(12);
+        log.debug("Grew hash table of {} to {} slots", path, capacity);
+    }
+
+    private void writeHash(Path file, int newCapacity, long[] entries) throws IOException {
+        if (newCapacity <= 0 || (long) newCapacity * Long.BYTES + HEADER_SIZE > Integer.MAX_VALUE) {
+            throw new IOException("Id dictionary " + path + " is too large");
+        }
+        final long[] table = new long[newCapacity];
+        final int mask = newCapacity - 1;
+        for (long entry : entries) {
+            int slot = (int) (entry >>> 32) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(newCapacity);
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (long entry : table) {
+                if (!buffer.hasRemaining()) {
+                    writeFully(channel, buffer.flip());
+                    buffer.clear();
+                }
+                buffer.putLong(entry);
+            }
+            writeFully(channel, buffer.flip());
+            channel.force(false);
+        }
+    }
+
+    private void mapHash(Path hashFile) throws IOException {
+        hashChannel = FileChannel.open(hashFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        hashBuffer = hashChannel.map(FileChannel.MapMode.READ_WRITE, 0, hashChannel.size());
+        slots = hashBuffer.position(HEADER_SIZE).slice().asLongBuffer();
+        hashBuffer.position(0);
+    }
+
+    private long getOffset(int ordinal) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        readFully(offsets, buffer, (long) ordinal * Long.BYTES);
+        return buffer.getLong(0);
+    }
+
+    private byte[] readId(int ordinal) throws IOException {
+        final long offset = getOffset(ordinal);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        while (true) {
+            final int n = ids.read(buffer, offset + buffer.position());
+            for (int i = buffer.position() - Math.max(n, 0); i < buffer.position(); ++i) {
+                if (buffer.get(i) == '\n') {
+                    return Arrays.copyOf(buffer.array(), i);
+                }
+            }
+            if (n < 0 || buffer.capacity() > MAX_ID_LENGTH) {
+                throw new IOException("Id " + ordinal + " of " + path + " is corrupt");
+            }
+            if (!buffer.hasRemaining()) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private Path sibling(String suffix) {
+        return path.resolveSibling(path.getFileName() + suffix);
+    }
+
+    private static int hash(byte[] id) {
+        return MurmurHash3.hash32x86(id);
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import lombok.Data;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Manifest of a finished dump or compare file, written next to it as
+ * &lt;name&gt;.manifest.json. Its existence marks the file as complete, like
+ * the plain OK file (.txt) with only the timestamp did before.
+ *
+ * Besides the timestamp it holds the row count, the header, the first and
+ * last id, the byte size and SHA-256 hashes of the file, of every
+ * {@link #BLOCK_SIZE} bytes of the file and of the uncompressed content. So
+ * readers can size, validate and compare files without decompressing them.
+ *
+ * The ids are hashed in file order as a whole and per id range, i.e. per
+ * first character of the id. Two files with the same id hash have the same
+ * ids, and ranges with the same hash don't need to be compared.
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class Manifest {
+
+    public static final int SCHEMA_VERSION = 1;
+    public static final int BLOCK_SIZE = 64 * 1024 * 1024;
+    private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(ZoneId.systemDefault());
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int RANGE_PREFIX_LENGTH = 1;
+
+    private int schemaVersion;
+    private String created;
+    private String file;
+    private String codec;
+    private List<String> header;
+    private long rows;
+    private String firstId;
+    private String lastId;
+    private long bytes;
+    private String sha256;
+    private String contentSha256;
+    private String idSha256;
+    private List<IdRange> ranges;
+    private int blockSize;
+    private List<String> blockSha256;
+
+    /**
+     * Reads a file once and creates its manifest.
+     *
+     * @param path Compressed CSV file with header
+     * @param created Time the file was created
+     * @return Manifest
+     * @throws IOException
+     */
+    public static Manifest create(Path path, Instant created) throws IOException {
+        return create(path, created, null);
+    }
+
+    /**
+     * Reads a file once and creates its manifest.
+     *
+     * @param path Compressed CSV file with header
+     * @param created Time the file was created
+     * @param recordConsumer Gets every record with an id in file order or null
+     * @return Manifest
+     * @throws IOException
+     */
+    public static Manifest create(Path path, Instant created, Consumer<CSVRecord> recordConsumer) throws IOException {
+        final Codec fileCodec = Codec.fromFileName(path.getFileName().toString());
+        if (fileCodec == null) {
+            throw new IOException("Unknown compression of " + path);
+        }
+        final Manifest manifest = new Manifest();
+        manifest.setSchemaVersion(SCHEMA_VERSION);
+        manifest.setCreated(dtf.format(created));
+        manifest.setFile(path.getFileName().toString());
+        manifest.setCodec(fileCodec.getName());
+        manifest.setBlockSize(BLOCK_SIZE);
+        final MessageDigest contentDigest = newDigest();
+        final MessageDigest idDigest = newDigest();
+        final List<IdRange> idRanges = new ArrayList<>();
+        try (final BlockDigestInputStream fileStream = new BlockDigestInputStream(Files.newInputStream(path));
+                final Reader reader = new InputStreamReader(new DigestInputStream(fileCodec.decompress(fileStream), contentDigest), StandardCharsets.UTF_8);
+                final CSVParser parser = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(reader)) {
+            final int idColumn = parser.getHeaderNames().indexOf("id");
+            long rows = 0;
+            String lastId = null;
+            IdRange range = null;
+            MessageDigest rangeDigest = null;
+            for (CSVRecord record : parser) {
+                if (idColumn >= 0 && idColumn < record.size()) {
+                    lastId = record.get(idColumn);
+                    if (rows == 0) {
+                        manifest.setFirstId(lastId);
+                    }
+                    final String prefix = rangeOf(lastId);
+                    if (range == null || !range.getPrefix().equals(prefix)) {
+                        if (range != null) {
+                            range.setIdSha256(Hex.encodeHexString(rangeDigest.digest()));
+                        }
+                        range = new IdRange();
+                        range.setPrefix(prefix);
+                        rangeDigest = newDigest();
+                        idRanges.add(range);
+                    }
+                    final byte[] id = (lastId + '\n').getBytes(StandardCharsets.UTF_8);
+                    idDigest.update(id);
+                    rangeDigest.update(id);
+                    range.setRows(range.getRows() + 1);
+                    if (recordConsumer != null) {
+                        recordConsumer.accept(record);
+                    }
+                }
+                ++rows;
+            }
+            if (range != null) {
+                range.setIdSha256(Hex.encodeHexString(rangeDigest.digest()));
+            }
+            // content behind the last row, e.g. an empty member, is hashed, too
+            while (reader.read() != -1);
+            manifest.setHeader(parser.getHeaderNames());
+            manifest.setRows(rows);
+            manifest.setLastId(lastId);
+            if (idColumn >= 0) {
+                manifest.setIdSha256(Hex.encodeHexString(idDigest.digest()));
+                manifest.setRanges(idRanges);
+            }
+            // remaining bytes of the file, e.g. trailing padding
+            fileStream.transferTo(OutputStream.nullOutputStream());
+            manifest.setBytes(fileStream.count);
+            manifest.setSha256(Hex.encodeHexString(fileStream.fileDigest.digest()));
+            manifest.setBlockSha256(fileStream.finishBlocks());
+        }
+        manifest.setContentSha256(Hex.encodeHexString(contentDigest.digest()));
+        return manifest;
+    }
+
+    /**
+     * Manifest of a file which only has a plain OK file with the timestamp.
+     *
+     * @param okFile OK file
+     * @return Manifest with the timestamp only
+     * @throws IOException
+     */
+    public static Manifest fromOkFile(Path okFile) throws IOException {
+        final List<String> lines = Files.readAllLines(okFile, StandardCharsets.UTF_8);
+        final Manifest manifest = new Manifest();
+        manifest.setCreated(lines.isEmpty() ? null : lines.get(0));
+        manifest.setRows(-1);
+        manifest.setBytes(-1);
+        return manifest;
+    }
+
+    public static Manifest read(Path path) throws IOException {
+        return MAPPER.readValue(path.toFile(), Manifest.class);
+    }
+
+    /**
+     * Writes the manifest to a temporary file first and moves it in place
+     * afterwards, so the file is only complete with a complete manifest. The
+     * catalog of the data path is updated right away.
+     *
+     * @param path Manifest file
+     * @throws IOException
+     */
+    public void write(Path path) throws IOException {
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        MAPPER.writeValue(tmp.toFile(), this);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        DumpCatalog.invalidate(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     *
+     * @return Creation time
+     */
+    @JsonIgnore
+    public Instant getCreatedInstant() {
+        return dtf.parse(created, Instant::from);
+    }
+
+    /**
+     * Compares the size and the block hashes with a file.
+     *
+     * @param path File of the manifest
+     * @return false if the file was changed or the manifest has no hashes
+     * @throws IOException
+     */
+    public boolean verify(Path path) throws IOException {
+        if (blockSha256 == null || Files.size(path) != bytes) {
+            return false;
+        }
+        try (final BlockDigestInputStream fileStream = new BlockDigestInputStream(Files.newInputStream(path))) {
+            fileStream.transferTo(OutputStream.nullOutputStream());
+            return blockSha256.equals(fileStream.finishBlocks());
+        }
+    }
+
+    /**
+     *
+     * @param other Manifest of another file
+     * @return true if both files have the same ids in the same order
+     */
+    public boolean hasSameIds(Manifest other) {
+        return idSha256 != null && idSha256.equals(other.getIdSha256());
+    }
+
+    /**
+     * Id ranges with the same ids in both files. A range which is split in a
+     * file, because its ids are not sorted, is never the same.
+     *
+     * @param other Manifest of another file
+     * @return Prefixes of the ranges, see {@link #rangeOf(String)}
+     */
+    public Set<String> getSameRanges(Manifest other) {
+        final Set<String> same = new HashSet<>();
+        if (ranges == null || other.getRanges() == null) {
+            return same;
+        }
+        final Map<String, IdRange> otherRanges = new HashMap<>();
+        final Set<String> split = new HashSet<>();
+        for (IdRange range : other.getRanges()) {
+            if (otherRanges.put(range.getPrefix(), range) != null) {
+                split.add(range.getPrefix());
+            }
+        }
+        for (IdRange range : ranges) {
+            if (!same.add(range.getPrefix())) {
+                split.add(range.getPrefix());
+            }
+            if (!range.equals(otherRanges.get(range.getPrefix()))) {
+                same.remove(range.getPrefix());
+                split.add(range.getPrefix());
+            }
+        }
+        same.removeAll(split);
+        return same;
+    }
+
+    /**
+     *
+     * @param id Id
+     * @return Prefix of the id range of the id
+     */
+    public static String rangeOf(String id) {
+        return id.length() <= RANGE_PREFIX_LENGTH ? id : id.substring(0, RANGE_PREFIX_LENGTH);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Ids of a file with the same prefix.
+     */
+    @Data
+    public static class IdRange {
+
+        private String prefix;
+        private long rows;
+        private String idSha256;
+    }
+
+    /**
+     * Hashes all bytes read and every block of {@link #BLOCK_SIZE} bytes.
+     */
+    private static class BlockDigestInputStream extends FilterInputStream {
+
+        private final MessageDigest fileDigest = newDigest();
+        private final List<String> blocks = new ArrayList<>();
+        private MessageDigest blockDigest = newDigest();
+        private long count;
+
+        private BlockDigestInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // a read never crosses a block boundary
+            final int remaining = (int) (BLOCK_SIZE - count % BLOCK_SIZE);
+            final int n = in.read(b, off, Math.min(len, remaining));
+            if (n > 0) {
+                fileDigest.update(b, off, n);
+                blockDigest.update(b, off, n);
+                count += n;
+                if (count % BLOCK_SIZE == 0) {
+                    blocks.add(Hex.encodeHexString(blockDigest.digest()));
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long skipped = 0;
+            while (skipped < n) {
+                final int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (r == -1) {
+                    break;
+                }
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        private List<String> finishBlocks() {
+            if (count % BLOCK_SIZE != 0 || count == 0) {
+                blocks.add(Hex.encodeHexString(blockDigest.digest()));
+                blockDigest = newDigest();
+            }
+            return blocks;
+        }
+    }
+}
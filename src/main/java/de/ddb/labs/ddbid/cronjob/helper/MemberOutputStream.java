@@ -0,0 +1,270 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes compressed data as a sequence of members, i.e. gzip members or zstd
+ * and LZ4 frames. The data is cut into blocks and every block is compressed
+ * as its own member, in parallel if more than one thread is given (like pigz
+ * or BGZF). A member can also be ended at any time to get a byte position
+ * where a reader can start to decompress. The output is readable with the
+ * stream of {@link Codec#decompress(InputStream)}.
+ *
+ * With a {@link MemberListener} blocks are row-aligned: a block is only cut
+ * at a row end marked by {@link #endRow(String)} and the listener gets the
+ * key of the first row, the offset and the row count of every member.
+ */
+public class MemberOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final Codec codec;
+    private final int blockSize;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final MemberListener listener;
+    private final Deque<PendingMember> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int count;
+    private String blockFirstKey;
+    private int blockRows;
+    private long position;
+
+    /**
+     * Gzip compressing stream.
+     *
+     * @param out Underlying stream
+     */
+    public MemberOutputStream(OutputStream out) {
+        this(out, Codec.GZIP, 0, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE, null);
+    }
+
+    /**
+     *
+     * @param out Underlying stream
+     * @param codec Codec of the members
+     * @param position Count of bytes already in the underlying file, e.g. when
+     * appending to a file
+     * @param threads Count of compressing threads, 1 compresses in the writing
+     * thread
+     * @param blockSize Uncompressed size of a block
+     */
+    public MemberOutputStream(OutputStream out, Codec codec, long position, int threads, int blockSize) {
+        this(out, codec, position, threads, blockSize, null);
+    }
+
+    /**
+     *
+     * @param out Underlying stream
+     * @param codec Codec of the members
+     * @param position Count of bytes already in the underlying file, e.g. when
+     * appending to a file
+     * @param threads Count of compressing threads, 1 compresses in the writing
+     * thread
+     * @param blockSize Uncompressed minimal size of a block
+     * @param listener Listener of written members, which makes blocks
+     * row-aligned, or null
+     */
+    public MemberOutputStream(OutputStream out, Codec codec, long position, int threads, int blockSize, MemberListener listener) {
+        this.out = out;
+        this.codec = codec;
+        this.listener = listener;
+        this.position = position;
+        this.blockSize = Math.max(BUFFER_SIZE, blockSize);
+        this.block = new byte[this.blockSize];
+        this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        // bounds the memory of blocks waiting to be written
+        this.maxPending = Math.max(1, threads) * 2;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == block.length) {
+            blockFull();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == block.length) {
+                blockFull();
+            }
+            final int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Marks the end of a row. All bytes of the row must have been written,
+     * i.e. writers in front of this stream must have been flushed. A block
+     * which reached the block size is cut here.
+     *
+     * @param key Key of the row, e.g. the id
+     * @throws IOException
+     */
+    public void endRow(String key) throws IOException {
+        if (blockRows++ == 0) {
+            blockFirstKey = key;
+        }
+        if (count >= blockSize) {
+            submitBlock();
+        }
+    }
+
+    /**
+     * Finishes the current member and writes all pending members. The
+     * next write starts a new member.
+     *
+     * @throws IOException
+     */
+    public void endMember() throws IOException {
+        submitBlock();
+        while (!pending.isEmpty()) {
+            writeMember(pending.removeFirst());
+        }
+    }
+
+    private void blockFull() throws IOException {
+        if (listener == null) {
+            submitBlock();
+        } else {
+            // a row-aligned block grows until the row ends
+            block = Arrays.copyOf(block, block.length * 2);
+        }
+    }
+
+    /**
+     * Byte position in the underlying file. Only at a member boundary, i.e.
+     * after {@link #endMember()}, this is a position where decompressing can
+     * start.
+     *
+     * @return Count of written compressed bytes
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Flushes the underlying stream. Data of an unfinished block stays
+     * buffered, because flushing it would end the block early; use
+     * {@link #endMember()} for that.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            endMember();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        final byte[] data = block;
+        final int length = count;
+        final String firstKey = blockFirstKey;
+        final int rows = blockRows;
+        block = new byte[blockSize];
+        count = 0;
+        blockFirstKey = null;
+        blockRows = 0;
+        if (executor == null) {
+            writeCompressed(compress(data, length), firstKey, rows);
+            return;
+        }
+        pending.addLast(new PendingMember(executor.submit(() -> compress(data, length)), firstKey, rows));
+        while (pending.size() > maxPending || (!pending.isEmpty() && pending.peekFirst().data().isDone())) {
+            writeMember(pending.removeFirst());
+        }
+    }
+
+    private void writeMember(PendingMember member) throws IOException {
+        try {
+            writeCompressed(member.data().get(), member.firstKey(), member.rows());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void writeCompressed(byte[] member, String firstKey, int rows) throws IOException {
+        if (listener != null && rows > 0) {
+            listener.memberWritten(firstKey, position, rows);
+        }
+        out.write(member);
+        position += member.length;
+    }
+
+    private byte[] compress(byte[] data, int length) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 4 + 64);
+        try (final OutputStream member = codec.compress(bos)) {
+            member.write(data, 0, length);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Gets informed about every written member with rows.
+     */
+    public interface MemberListener {
+
+        /**
+         *
+         * @param firstKey Key of the first row
+         * @param offset Byte offset of the member
+         * @param rows Count of rows
+         */
+        void memberWritten(String firstKey, long offset, int rows);
+    }
+
+    private record PendingMember(Future<byte[]> data, String firstKey, int rows) {
+
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Heap budget shared by parallel jobs. A job reserves its estimated memory
+ * before it starts and waits until enough of the budget is free. A
+ * reservation larger than the budget is cut to the budget, so a large job
+ * still runs, but alone.
+ */
+public class MemoryBudget {
+
+    private static final long MB = 1024 * 1024;
+
+    private final Semaphore permits;
+    private final int total;
+
+    /**
+     *
+     * @param bytes Size of the budget
+     */
+    public MemoryBudget(long bytes) {
+        this.total = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / MB));
+        this.permits = new Semaphore(total, true);
+    }
+
+    /**
+     *
+     * @param share Share of the max. heap, e.g. 0.5
+     * @return Budget
+     */
+    public static MemoryBudget ofHeap(double share) {
+        return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * share));
+    }
+
+    /**
+     *
+     * @return Size of the budget in MB
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     *
+     * @return Free budget in MB
+     */
+    public int getAvailable() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * Waits until the memory is free and reserves it.
+     *
+     * @param bytes Estimated memory of a job
+     * @return Reservation, which is released on close
+     * @throws InterruptedException
+     */
+    public Reservation reserve(long bytes) throws InterruptedException {
+        final Reservation reservation = new Reservation();
+        reservation.grow(bytes);
+        return reservation;
+    }
+
+    private int toPermits(long bytes) {
+        return (int) Math.max(1, Math.min(total, (bytes + MB - 1) / MB));
+    }
+
+    public class Reservation implements AutoCloseable {
+
+        private int reserved;
+
+        private Reservation() {
+        }
+
+        /**
+         *
+         * @return Budget of the reservation
+         */
+        public MemoryBudget getBudget() {
+            return MemoryBudget.this;
+        }
+
+        /**
+         * Grows the reservation of a running job. If the additional memory
+         * is not free, the reservation is given back while waiting, so jobs
+         * waiting for more memory don't block each other.
+         *
+         * @param bytes Estimated memory of the job from now on
+         * @throws InterruptedException
+         */
+        public synchronized void grow(long bytes) throws InterruptedException {
+            final int target = toPermits(bytes);
+            if (target <= reserved) {
+                return;
+            }
+            if (!permits.tryAcquire(target - reserved)) {
+                permits.release(reserved);
+                reserved = 0;
+                permits.acquire(target);
+            }
+            reserved = target;
+        }
+
+        @Override
+        public synchronized void close() {
+            permits.release(reserved);
+            reserved = 0;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Chooses the rows of the next page request. The page size follows the
+ * observed time per row towards a target duration per page and is limited by
+ * the free heap, because every page in flight is held in memory. A page size
+ * changes at most by factor 2 per page and always stays between the
+ * configured bounds.
+ */
+@Slf4j
+public class PageSizeController {
+
+    private static final double MAX_STEP = 2.0; // max. factor of change per page
+    private static final double HEAP_SHARE = 0.25; // share of free heap all pages in flight may use
+    private static final double SMOOTHING = 0.5; // weight of the latest page in the moving average
+
+    private final String name;
+    private final int minRows;
+    private final int maxRows;
+    private final long targetNanos;
+    private final int pagesInMemory;
+    private final AtomicInteger gauge;
+    private volatile int rows;
+    private double nanosPerRow = -1;
+
+    /**
+     *
+     * @param name Name for logging
+     * @param minRows Lower bound of rows
+     * @param maxRows Upper bound of rows
+     * @param targetMillis Target duration of a page request
+     * @param pagesInMemory Count of pages held in memory at the same time
+     * @param gauge Metric of the current page size or null
+     */
+    public PageSizeController(String name, int minRows, int maxRows, long targetMillis, int pagesInMemory, AtomicInteger gauge) {
+        this.name = name;
+        this.minRows = Math.max(1, Math.min(minRows, maxRows));
+        this.maxRows = Math.max(this.minRows, maxRows);
+        this.targetNanos = targetMillis * 1_000_000L;
+        this.pagesInMemory = Math.max(1, pagesInMemory);
+        this.gauge = gauge;
+        setRows(this.minRows);
+    }
+
+    /**
+     *
+     * @return Rows of the next page request
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Adjusts the page size to a finished page.
+     *
+     * @param count Count of documents of the page
+     * @param nanos Duration of request and parsing
+     * @param bytes Size of the response
+     */
+    public synchronized void observe(int count, long nanos, long bytes) {
+        if (count <= 0) {
+            return;
+        }
+        final double latest = (double) nanos / count;
+        nanosPerRow = nanosPerRow < 0 ? latest : SMOOTHING * latest + (1 - SMOOTHING) * nanosPerRow;
+
+        final int current = rows;
+        double next = targetNanos > 0 ? targetNanos / nanosPerRow : maxRows;
+        next = Math.max(current / MAX_STEP, Math.min(current * MAX_STEP, next));
+
+        final Runtime runtime = Runtime.getRuntime();
+        final long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        final long bytesPerRow = Math.max(1, bytes / count);
+        final double heapLimit = freeHeap * HEAP_SHARE / bytesPerRow / pagesInMemory;
+        next = Math.min(next, heapLimit);
+
+        final int nextRows = (int) Math.max(minRows, Math.min(maxRows, next));
+        if (nextRows != current) {
+            if (Math.abs(nextRows - current) * 10 >= current) {
+                log.info("Page size of {} changed from {} to {} rows ({} ms/page, {} bytes/row, {} MB free heap)", name, current, nextRows, nanos / 1_000_000, bytesPerRow, freeHeap / 1024 / 1024);
+            }
+            setRows(nextRows);
+        }
+    }
+
+    private void setRows(int rows) {
+        this.rows = rows;
+        if (gauge != null) {
+            gauge.set(rows);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.Getter;
+import org.apache.commons.csv.CSVRecord;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * Ids of a snapshot as compressed bitmap of their ordinals in the
+ * {@link IdDictionary} of the data path. The ordinals are stable, so NEW and
+ * MISSING ids of any two snapshots are set operations on their bitmaps.
+ *
+ * Besides the ids the file holds one bitmap per value of a few attribute
+ * columns, e.g. provider_id, for breakdowns of a set of ids. The file starts
+ * with magic and version, followed by the id bitmap and the attributes as
+ * column name, count of values and value name and bitmap per value.
+ */
+public class SnapshotBitmap {
+
+    private static final int MAGIC = 0x44444253; // DDBS
+    private static final int VERSION = 1;
+    public static final List<String> ATTRIBUTE_COLUMNS = List.of("provider_id", "sector_fct", "type"); // columns with few distinct values
+
+    @Getter
+    private final RoaringBitmap ids;
+
+    @Getter
+    private final Map<String, Map<String, RoaringBitmap>> attributes;
+
+    public SnapshotBitmap() {
+        this.ids = new RoaringBitmap();
+        this.attributes = new TreeMap<>();
+    }
+
+    private SnapshotBitmap(RoaringBitmap ids, Map<String, Map<String, RoaringBitmap>> attributes) {
+        this.ids = ids;
+        this.attributes = attributes;
+    }
+
+    public void add(int ordinal) {
+        ids.add(ordinal);
+    }
+
+    /**
+     * Adds the id of a dump record and its attribute values.
+     *
+     * @param record Dump record
+     * @param ordinal Ordinal of the id of the record
+     */
+    public void add(CSVRecord record, int ordinal) {
+        ids.add(ordinal);
+        for (String column : ATTRIBUTE_COLUMNS) {
+            if (record.isMapped(column) && record.isSet(column)) {
+                for (String value : values(record.get(column))) {
+                    addAttribute(column, value, ordinal);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @param column Attribute column
+     * @param value Value of the column
+     * @param ordinal Ordinal of an id with the value
+     */
+    public void addAttribute(String column, String value, int ordinal) {
+        attributes.computeIfAbsent(column, c -> new TreeMap<>()).computeIfAbsent(value, v -> new RoaringBitmap()).add(ordinal);
+    }
+
+    /**
+     * Values of a dump column. Multi-valued fields are written as [a, b].
+     */
+    private static List<String> values(String value) {
+        if (value.startsWith("[") && value.endsWith("]")) {
+            value = value.substring(1, value.length() - 1);
+            return value.isEmpty() ? List.of() : Arrays.asList(value.split(", "));
+        }
+        return value.isEmpty() ? List.of() : List.of(value);
+    }
+
+    /**
+     * Counts ids per value of an attribute column.
+     *
+     * @param column Attribute column
+     * @param selection Ordinals of ids of this snapshot
+     * @return Count per value, values without ids are left out
+     */
+    public Map<String, Integer> countByAttribute(String column, RoaringBitmap selection) {
+        final Map<String, Integer> counts = new TreeMap<>();
+        for (Map.Entry<String, RoaringBitmap> value : attributes.getOrDefault(column, Map.of()).entrySet()) {
+            final int count = RoaringBitmap.andCardinality(value.getValue(), selection);
+            if (count > 0) {
+                counts.put(value.getKey(), count);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Writes the bitmaps to a temporary file first and moves it in place
+     * afterwards.
+     *
+     * @param path Bitmap file
+     * @throws IOException
+     */
+    public void write(Path path) throws IOException {
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            ids.runOptimize();
+            ids.serialize(out);
+            out.writeInt(attributes.size());
+            for (Map.Entry<String, Map<String, RoaringBitmap>> column : attributes.entrySet()) {
+                out.writeUTF(column.getKey());
+                out.writeInt(column.getValue().size());
+                for (Map.Entry<String, RoaringBitmap> value : column.getValue().entrySet()) {
+                    out.writeUTF(value.getKey());
+                    value.getValue().runOptimize();
+                    value.getValue().serialize(out);
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static SnapshotBitmap read(Path path) throws IOException {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a snapshot bitmap");
+            }
+            final RoaringBitmap ids = new RoaringBitmap();
+            ids.deserialize(in);
+            final Map<String, Map<String, RoaringBitmap>> attributes = new TreeMap<>();
+            for (int c = in.readInt(); c > 0; --c) {
+                final Map<String, RoaringBitmap> values = new TreeMap<>();
+                attributes.put(in.readUTF(), values);
+                for (int v = in.readInt(); v > 0; --v) {
+                    final String value = in.readUTF();
+                    final RoaringBitmap bitmap = new RoaringBitmap();
+                    bitmap.deserialize(in);
+                    values.put(value, bitmap);
+                }
+            }
+            return new SnapshotBitmap(ids, attributes);
+        }
+    }
+}
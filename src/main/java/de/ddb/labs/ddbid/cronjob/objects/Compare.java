@@ -15,42 +15,54 @@
  */
 package de.ddb.labs.ddbid.cronjob.objects;
 
+import de.ddb.labs.ddbid.cronjob.helper.Codec;
+import de.ddb.labs.ddbid.cronjob.helper.CompareRecord;
+import de.ddb.labs.ddbid.cronjob.helper.CompareRecordReader;
 import de.ddb.labs.ddbid.cronjob.helper.Helper;
-import com.github.davidmoten.bigsorter.Reader;
-import com.github.davidmoten.bigsorter.Serializer;
-import com.github.davidmoten.bigsorter.Util;
-import com.github.davidmoten.bigsorter.Writer;
+import de.ddb.labs.ddbid.cronjob.helper.IdDictionary;
+import de.ddb.labs.ddbid.cronjob.helper.Manifest;
+import de.ddb.labs.ddbid.cronjob.helper.MemoryBudget;
+import de.ddb.labs.ddbid.cronjob.helper.MemberOutputStream;
+import de.ddb.labs.ddbid.cronjob.helper.SnapshotBitmap;
+import com.github.davidmoten.bigsorter.Sorter;
 import de.ddb.labs.ddbid.model.Status;
 import de.ddb.labs.ddbid.model.item.ItemDoc;
 import de.ddb.labs.ddbid.model.organization.OrganizationDoc;
 import de.ddb.labs.ddbid.model.person.PersonDoc;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
-import org.apache.commons.csv.CSVRecord;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
@@ -60,12 +72,33 @@ public class Compare implements Runnable {
 
     private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(ZoneId.systemDefault());
     public static final String COMPARE_OUTPUT_FILENAME_PREFIX = "CMP_";
-    public static final String OUTPUT_FILENAME_EXT = ".csv.gz";
     public static final String OK_FILENAME_EXT = ".txt";
-    public static final String DUMP_FILES_PATTERN = "[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\.csv\\.gz";
-    public static final String DUMPOK_FILES_PATTERN = "[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\.txt";
-    public static final String CMP_FILES_PATTERN = "CMP\\_[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\_[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}_(MISSING|NEW)\\.csv\\.gz";
-    public static final String CMPOK_FILES_PATTERN = "CMP\\_[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\_[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}_(MISSING|NEW)\\.txt";
+    public static final String MANIFEST_FILENAME_EXT = ".manifest.json";
+    public static final String DICTIONARY_FILENAME = "ids.dict";
+    public static final String BITMAP_FILENAME_EXT = ".bitmap";
+    private static final int MAX_BITMAP_DIFFERENCES = 1000000; // max. count of ids of a compare by snapshot bitmaps
+    private static final int SORT_ITEMS_PER_FILE = 100000; // records of a dump sorted in memory at once
+    private static final long RECORD_BYTES = 1024; // estimated heap of a parsed record or a resolved id
+    private static final long INPUT_BUFFER_BYTES = 4 * 1024 * 1024; // estimated buffers of the decompressed dumps
+    private static final long ID_BYTES = 128; // estimated heap of an id in a hash set
+    private static final long PARTITION_BUFFER_BYTES = 8 * 1024 * 1024; // estimated buffers of a partition file while splitting
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] RECORD_SEPARATOR = CSVFormat.DEFAULT.getRecordSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final String ID_ALPHABET = "234567ABCDEFGHIJKLMNOPQRSTUVWXYZ"; // base32 alphabet of the ids in the order of String#compareTo
+    public static final String CHECKPOINT_FILENAME_EXT = ".checkpoint";
+    public static final String COLUMNAR_FILENAME_EXT = ".col";
+    public static final String INDEX_FILENAME_EXT = ".idx";
+    public static final String BLOOM_FILENAME_EXT = ".bloom";
+    public static final String DUMP_FILES_PATTERN = "[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}" + Codec.EXTENSION_PATTERN;
+    public static final String DUMPPART_FILES_PATTERN = "[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\.part[0-9]+" + Codec.EXTENSION_PATTERN;
+    public static final String CHECKPOINT_FILES_PATTERN = "[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}(\\.part[0-9]+)?\\.checkpoint";
+    public static final String DELTA_FILES_PATTERN = "[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\.(delta|ids)(" + Codec.EXTENSION_PATTERN + "|\\.checkpoint)";
+    public static final String COLUMNAR_FILES_PATTERN = "[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\.col(\\.[0-9]+)?(\\.tmp)?";
+    public static final String INDEX_FILES_PATTERN = "[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}(\\.part[0-9]+)?\\.idx(\\.tmp)?";
+    public static final String BLOOM_FILES_PATTERN = "[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\.bloom(\\.tmp)?";
+    public static final String DUMPOK_FILES_PATTERN = "[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\.(txt|manifest\\.json)";
+    public static final String CMP_FILES_PATTERN = "CMP\\_[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\_[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}_(MISSING|NEW)" + Codec.EXTENSION_PATTERN;
+    public static final String CMPOK_FILES_PATTERN = "CMP\\_[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}\\_[0-9]{4}\\-[0-9]{2}\\-[0-9]{2}_(MISSING|NEW)\\.(txt|manifest\\.json)";
 
     @Value(value = "${ddbid.datapath.item}")
     private String dataPathItem;
@@ -76,17 +109,101 @@ public class Compare implements Runnable {
     @Value(value = "${ddbid.datapath.organization}")
     private String dataPathOrganization;
 
+    @Value(value = "${ddbid.gzip.threads}")
+    private int gzipThreads;
+
+    @Value(value = "${ddbid.gzip.blocksize}")
+    private int gzipBlockSize;
+
+    @Value(value = "${ddbid.compare.codec}")
+    private String codec;
+
+    @Value(value = "${ddbid.compare.parallel}")
+    private int parallel;
+
+    @Value(value = "${ddbid.compare.memory}")
+    private double memoryShare;
+
+    @Value(value = "${ddbid.compare.partitions}")
+    private int partitions;
+
+    @Value(value = "${ddbid.compare.partition.rows}")
+    private long partitionRows;
+
     @Override
     public void run() {
-        compareDumps(dataPathItem, ItemDoc.getStaticHeader());
-        compareDumps(dataPathPerson, PersonDoc.getStaticHeader());
-        compareDumps(dataPathOrganization, OrganizationDoc.getStaticHeader());
+        final List<CompareJob> jobs = new ArrayList<>();
+        jobs.addAll(getJobs(dataPathItem, ItemDoc.getStaticHeader()));
+        jobs.addAll(getJobs(dataPathPerson, PersonDoc.getStaticHeader()));
+        jobs.addAll(getJobs(dataPathOrganization, OrganizationDoc.getStaticHeader()));
+        runJobs(jobs);
     }
 
     private void compareDumps(String dataPath, List<String> header) {
+        runJobs(getJobs(dataPath, header));
+    }
+
+    /**
+     * Runs the compares of all types and dump pairs in parallel. The count of
+     * parallel compares is limited by the cores, which are shared with the
+     * compression threads of the compares, and by the heap, see
+     * {@link MemoryBudget}. A failed compare doesn't stop the others.
+     *
+     * @param jobs Compares
+     */
+    private void runJobs(List<CompareJob> jobs) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        final int threads = Math.min(jobs.size(), parallel > 0 ? parallel : Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, gzipThreads)));
+        final MemoryBudget budget = MemoryBudget.ofHeap(memoryShare > 0 ? memoryShare : 0.5);
+        log.info("Run {} compares with {} threads and {} MB of heap", jobs.size(), threads, budget.getTotal());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (CompareJob job : jobs) {
+                futures.add(executor.submit(() -> job.run(budget)));
+            }
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    log.error("Compare of {} with {} failed.", jobs.get(i).fileA, jobs.get(i).fileB, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Compare was interrupted. {}", e.getMessage());
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Searches for uncompared dumps of a data path.
+     *
+     * @param dataPath Data path
+     * @param header Header of the compare files
+     * @return Compares of consecutive dumps
+     */
+    private List<CompareJob> getJobs(String dataPath, List<String> header) {
+        final List<CompareJob> jobs = new ArrayList<>();
         // search for uncompared and creates them
         final File[] dumpFiles = Helper.getOkDumpFiles(dataPath, Comparator.naturalOrder()).toArray(File[]::new);
-        final Set<File> cmpFiles = Helper.getOkCmpFiles(dataPath, Comparator.naturalOrder());
+        // compare files are identified by their base name, so a change of the
+        // codec does not compare dumps again
+        final Set<String> cmpFiles = Helper.getOkCmpFiles(dataPath, Comparator.naturalOrder()).stream().map(f -> Codec.baseName(f.getName())).collect(Collectors.toSet());
+        // dumps between base snapshots of the archive are deleted, but their
+        // compare files are kept, so a dump is only compared with the older
+        // dump of its compare files
+        final Map<String, Set<String>> comparedDumps = new HashMap<>();
+        for (String cmpFile : cmpFiles) {
+            final String older = cmpFile.substring(COMPARE_OUTPUT_FILENAME_PREFIX.length(), COMPARE_OUTPUT_FILENAME_PREFIX.length() + 10);
+            final String newer = cmpFile.substring(COMPARE_OUTPUT_FILENAME_PREFIX.length() + 11, COMPARE_OUTPUT_FILENAME_PREFIX.length() + 21);
+            comparedDumps.computeIfAbsent(newer, k -> new HashSet<>()).add(older);
+        }
+        final String outputFileExt = Codec.of(codec).getExtension();
 
         for (int i = 0; i < dumpFiles.length - 1; ++i) {
             final File fileA = dumpFiles[i];
@@ -94,133 +211,817 @@ public class Compare implements Runnable {
 
             final String fileABaseName = fileA.getName().substring(0, fileA.getName().indexOf('.'));
             final String fileBBaseName = fileB.getName().substring(0, fileB.getName().indexOf('.'));
+            final Set<String> olderDumps = comparedDumps.get(fileBBaseName);
+            if (olderDumps != null && !olderDumps.contains(fileABaseName)) {
+                log.info("{} was already compared with an older dump. Skip comparing it with {}.", fileB.getName(), fileA.getName());
+                continue;
+            }
             final String outputBaseFileNameABMissing = dataPath + COMPARE_OUTPUT_FILENAME_PREFIX + fileABaseName + "_" + fileBBaseName + "_" + Status.MISSING;
-            final File outputFileNameABMissing = new File(outputBaseFileNameABMissing + OUTPUT_FILENAME_EXT);
+            final File outputFileNameABMissing = new File(outputBaseFileNameABMissing + outputFileExt);
             final String outputBaseFileNameBANew = dataPath + COMPARE_OUTPUT_FILENAME_PREFIX + fileABaseName + "_" + fileBBaseName + "_" + Status.NEW;
-            final File outputFileNameBANew = new File(outputBaseFileNameBANew + OUTPUT_FILENAME_EXT);
+            final File outputFileNameBANew = new File(outputBaseFileNameBANew + outputFileExt);
 
-            // compare for MISSING
-            if (cmpFiles.contains(outputFileNameABMissing)) {
+            // both compare files are created in one pass, an existing one is
+            // kept
+            final boolean missingExists = cmpFiles.contains(Codec.baseName(outputFileNameABMissing.getName()));
+            final boolean newExists = cmpFiles.contains(Codec.baseName(outputFileNameBANew.getName()));
+            if (missingExists) {
                 log.info("{} already exists. Skipping this one.", outputFileNameABMissing);
-            } else {
-                log.info("{} does not exist. Create compare file...", outputFileNameABMissing);
-                try {
-                    findDifferences(fileA, fileB, outputFileNameABMissing, header, Status.MISSING);
-                } catch (Exception e) {
-                    log.error("Error while comparing {} with {} to {}. {}", fileA, fileB, outputFileNameABMissing, e.getMessage());
-                    if (!outputFileNameABMissing.delete()) {
-                        outputFileNameABMissing.deleteOnExit();
-                    }
-                    continue;
-                }
-                // write OK file
-                try {
-                    Files.write(Path.of(outputBaseFileNameABMissing + OK_FILENAME_EXT), List.of(dtf.format(Instant.now())), StandardCharsets.UTF_8);
-                } catch (IOException ex) {
-                    log.error("Could not write OK file. {}", ex.getMessage());
-                }
             }
-
-            // compare for NEW
-            if (cmpFiles.contains(outputFileNameBANew)) {
+            if (newExists) {
                 log.info("{} already exists. Skipping this one.", outputFileNameBANew);
-            } else {
+            }
+            if (missingExists && newExists) {
+                continue;
+            }
+            jobs.add(new CompareJob(fileA, fileB, missingExists ? null : outputFileNameABMissing, newExists ? null : outputFileNameBANew, header));
+        }
+        return jobs;
+    }
+
+    /**
+     * Compare of two consecutive dumps of a type.
+     */
+    private class CompareJob {
 
-                log.info("{} does not exist. Create compare file...", outputFileNameBANew);
+        private final File fileA;
+        private final File fileB;
+        private final File outputMissing;
+        private final File outputNew;
+        private final List<String> header;
+
+        private CompareJob(File fileA, File fileB, File outputMissing, File outputNew, List<String> header) {
+            this.fileA = fileA;
+            this.fileB = fileB;
+            this.outputMissing = outputMissing;
+            this.outputNew = outputNew;
+            this.header = header;
+        }
+
+        private void run(MemoryBudget budget) {
+            // the merge-join only needs the buffers of its files
+            final int outputs = (outputMissing == null ? 0 : 1) + (outputNew == null ? 0 : 1);
+            final long buffers = INPUT_BUFFER_BYTES + 2L * outputs * Math.max(1, gzipThreads) * gzipBlockSize;
+            try (final MemoryBudget.Reservation reservation = budget.reserve(buffers)) {
+                log.info("Compare {} with {}. Create compare files...", fileA, fileB);
                 try {
-                    findDifferences(fileB,fileA,  outputFileNameBANew, header, Status.NEW);
+                    findDifferences(fileA, fileB, outputMissing, outputNew, header, reservation, buffers, partitions, partitionRows, gzipThreads, gzipBlockSize);
                 } catch (Exception e) {
-                    log.error("Error while comparing {} with {} to {}. {}", fileB,fileA, outputFileNameBANew, e.getMessage());
-                    if (!outputFileNameBANew.delete()) {
-                        outputFileNameBANew.deleteOnExit();
+                    log.error("Error while comparing {} with {}.", fileA, fileB, e);
+                    for (File output : new File[]{outputMissing, outputNew}) {
+                        if (output != null && !output.delete()) {
+                            output.deleteOnExit();
+                        }
                     }
-                    continue;
-                }
-                // write OK file
-                try {
-                    Files.write(Path.of(outputBaseFileNameBANew + OK_FILENAME_EXT), List.of(dtf.format(Instant.now())), StandardCharsets.UTF_8);
-                } catch (IOException ex) {
-                    log.error("Could not write OK file. {}", ex.getMessage());
+                    return;
                 }
+            } catch (InterruptedException e) {
+                log.warn("Compare of {} with {} was interrupted.", fileA, fileB);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // write manifests
+            if (outputMissing != null) {
+                writeManifest(outputMissing);
+            }
+            if (outputNew != null) {
+                writeManifest(outputNew);
             }
         }
     }
 
+    private static void writeManifest(File output) {
+        final String outputBaseFileName = Codec.baseName(output.getPath());
+        try {
+            Manifest.create(output.toPath(), Instant.now()).write(Path.of(outputBaseFileName + MANIFEST_FILENAME_EXT));
+        } catch (IOException ex) {
+            log.error("Could not write manifest. {}", ex.getMessage());
+        }
+    }
+
     /**
+     * Creates the MISSING and NEW compare files of two dumps. Dumps are sorted
+     * by id, so both are read once by a merge-join, which writes both compare
+     * files in the same pass. Dumps which are not sorted are compared by
+     * their snapshot bitmaps or by sorting, once per compare file. Compare
+     * files are always sorted by id, as the archive merges them with the
+     * dumps. Very large dumps are compared in partitions on all cores.
      *
      * @param fileA Older file
      * @param fileB Newer File
-     * @param output
-     * @param status
-     * @return
+     * @param outputMissing MISSING compare file or null if it exists
+     * @param outputNew NEW compare file or null if it exists
+     * @param header Header of the compare files
+     * @param reservation Memory of the compare, which is grown for a compare
+     * without merge-join
+     * @param buffers Memory of the buffers of the compare
+     * @param partitions Count of partitions of a partitioned compare, 1 or
+     * less never compares in partitions
+     * @param partitionRows Min. count of rows of a dump compared in
+     * partitions
+     * @param gzipThreads Count of threads compressing the output
+     * @param gzipBlockSize Uncompressed size of an output gzip block
      * @throws FileNotFoundException
      * @throws IOException
+     * @throws InterruptedException
      */
-    private static int findDifferences(File fileA, File fileB, File output, List<String> header, Status status) throws FileNotFoundException, IOException {
+    private static void findDifferences(File fileA, File fileB, File outputMissing, File outputNew, List<String> header, MemoryBudget.Reservation reservation, long buffers, int partitions, long partitionRows, int gzipThreads, int gzipBlockSize) throws FileNotFoundException, IOException, InterruptedException {
+
+        final Manifest manifestA = Helper.getManifest(fileA);
+        final Manifest manifestB = Helper.getManifest(fileB);
+        if (manifestA == null || manifestB == null) {
+            throw new FileNotFoundException("No manifest of " + (manifestA == null ? fileA : fileB));
+        }
 
-        final File okFileA = new File(fileA.getAbsolutePath().replace(OUTPUT_FILENAME_EXT, OK_FILENAME_EXT));
-        final File okFileB = new File(fileB.getAbsolutePath().replace(OUTPUT_FILENAME_EXT, OK_FILENAME_EXT));
-        
-        final List<String> okFileALines = Files.readAllLines(okFileA.toPath(), StandardCharsets.UTF_8);
-        final List<String> okFileBLines = Files.readAllLines(okFileB.toPath(), StandardCharsets.UTF_8);
-        
-        final Instant okFileADate = dtf.parse(okFileALines.get(0), Instant::from);
-        final Instant okFileBDate = dtf.parse(okFileBLines.get(0), Instant::from);
+        final Instant okFileADate = manifestA.getCreatedInstant();
+        final Instant okFileBDate = manifestB.getCreatedInstant();
         Instant dateForCsv = okFileBDate;
 
         if (okFileADate.compareTo(okFileBDate) > 0) {
             dateForCsv = okFileADate;
         }
 
-        final File tmpFile = File.createTempFile("ddbid-", "csv.gz");
-        final Serializer<CSVRecord> csVSerializer = Serializer.csv(CSVFormat.DEFAULT.withFirstRecordAsHeader(), StandardCharsets.UTF_8);
-        final Comparator<CSVRecord> comparator = (x, y) -> {
-            final String a = x.get("id");
-            final String b = y.get("id");
-            return a.compareTo(b);
-        };
-        try (final InputStream fileStreamA = new FileInputStream(fileA); 
-                final GZIPInputStream gzipA = new GZIPInputStream(fileStreamA); 
-                final Reader readerA = csVSerializer.createReader(gzipA);
-                final InputStream fileStreamB = new FileInputStream(fileB); 
-                final GZIPInputStream gzipB = new GZIPInputStream(fileStreamB); 
-                final Reader<CSVRecord> readerB = csVSerializer.createReader(gzipB); 
-                final OutputStream fileOutputStream = new FileOutputStream(tmpFile, false); 
-                final GZIPOutputStream gzOutStream = new GZIPOutputStream(fileOutputStream); 
-                final Writer<CSVRecord> writerAb = csVSerializer.createWriter(gzOutStream)) {
-            Util.findComplement(readerA, readerB, comparator, writerAb);
-        }
-        int lineCount = 0;
-        try (final InputStream fileStream = new FileInputStream(tmpFile); 
-                final InputStream gzipStream = new GZIPInputStream(fileStream); 
-                final InputStreamReader decoder = new InputStreamReader(gzipStream, StandardCharsets.UTF_8);
-                final OutputStream os = Files.newOutputStream(Path.of(output.getAbsolutePath()), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE); 
-                final OutputStreamWriter ow = new OutputStreamWriter(new GZIPOutputStream(os), StandardCharsets.UTF_8); 
-                final BufferedWriter bw = new BufferedWriter(ow);
-                final CSVPrinter csvPrinter = new CSVPrinter(bw, CSVFormat.DEFAULT.withFirstRecordAsHeader())) {
+        // same ids, so there are no differences
+        if (manifestA.hasSameIds(manifestB)) {
+            for (File output : new File[]{outputMissing, outputNew}) {
+                if (output != null) {
+                    new DifferencePrinter(output, header, null, null, dateForCsv, gzipThreads, gzipBlockSize).close();
+                }
+            }
+            log.info("{} has the same ids as {}. There are no differences.", fileA.getName(), fileB.getName());
+            return;
+        }
+
+        if (partitions > 1 && Math.max(manifestA.getRows(), manifestB.getRows()) >= partitionRows) {
+            partitionDifferences(fileA, fileB, manifestA, manifestB, outputMissing, outputNew, header, dateForCsv, partitions, reservation, buffers, gzipThreads, gzipBlockSize);
+            return;
+        }
+
+        try (final SortedRecords recordsA = SortedRecords.open(fileA);
+                final SortedRecords recordsB = SortedRecords.open(fileB)) {
+            mergeDifferences(recordsA, recordsB, outputMissing, outputNew, header, dateForCsv, gzipThreads, gzipBlockSize);
+            return;
+        } catch (UnsortedException e) {
+            log.warn("{} Compare {} with {} without merge-join.", e.getMessage(), fileA.getName(), fileB.getName());
+        }
+        // ids of the snapshot bitmaps or records of the sort are in memory
+        reservation.grow(buffers + Math.max(MAX_BITMAP_DIFFERENCES, SORT_ITEMS_PER_FILE) * RECORD_BYTES);
+
+        // the snapshot bitmaps give the differing ids without sorting
+        final Set<String> missingIds = outputMissing == null ? Set.of() : getDifferentIds(fileA, fileB);
+        final Set<String> newIds = outputNew == null || missingIds == null ? Set.of() : getDifferentIds(fileB, fileA);
+        if (missingIds != null && newIds != null) {
+            if (outputMissing != null) {
+                writeDifferences(fileA, missingIds, outputMissing, header, Status.MISSING, dateForCsv, gzipThreads, gzipBlockSize);
+            }
+            if (outputNew != null) {
+                writeDifferences(fileB, newIds, outputNew, header, Status.NEW, dateForCsv, gzipThreads, gzipBlockSize);
+            }
+            return;
+        }
+
+        // external sort of both dumps and merge-join of the sorted records
+        try (final SortedRecords recordsA = SortedRecords.sort(fileA);
+                final SortedRecords recordsB = SortedRecords.sort(fileB)) {
+            mergeDifferences(recordsA, recordsB, outputMissing, outputNew, header, dateForCsv, gzipThreads, gzipBlockSize);
+        }
+    }
+
+    /**
+     * Compares two dumps in partitions of their ids. Both dumps are read once
+     * and split into partition files by the first characters of the ids, so
+     * the partitions are in the order of the ids. Ranges with the same ids in
+     * both dumps are left out. The partitions are compared in parallel, with
+     * hash sets of their ids if these fit into memory and by merge-join
+     * otherwise. Every partition is written with the codec of the compare
+     * files, so the compare files are the concatenation of the partitions.
+     *
+     * @param fileA Older file
+     * @param fileB Newer File
+     * @param manifestA Manifest of the older file
+     * @param manifestB Manifest of the newer file
+     * @param outputMissing MISSING compare file or null if it exists
+     * @param outputNew NEW compare file or null if it exists
+     * @param header Header of the compare files
+     * @param dateForCsv Timestamp of the records
+     * @param partitions Count of partitions
+     * @param reservation Memory of the compare
+     * @param buffers Memory of the buffers of the compare
+     * @param gzipThreads Count of threads compressing the output
+     * @param gzipBlockSize Uncompressed size of an output gzip block
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static void partitionDifferences(File fileA, File fileB, Manifest manifestA, Manifest manifestB, File outputMissing, File outputNew, List<String> header, Instant dateForCsv, int partitions, MemoryBudget.Reservation reservation, long buffers, int gzipThreads, int gzipBlockSize) throws IOException, InterruptedException {
+        final int threads = Math.min(partitions, Runtime.getRuntime().availableProcessors());
+        final Set<String> sameRanges = manifestA.getSameRanges(manifestB);
+        final Path dir = Files.createTempDirectory("ddbid-compare-");
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            log.info("Compare {} with {} in {} partitions with {} threads...", fileA.getName(), fileB.getName(), partitions, threads);
+            reservation.grow(buffers + 2 * partitions * PARTITION_BUFFER_BYTES);
+            final Future<long[]> splitA = executor.submit(() -> split(fileA, dir, "A", partitions, sameRanges));
+            final Future<long[]> splitB = executor.submit(() -> split(fileB, dir, "B", partitions, sameRanges));
+            final long[] rowsA = splitA.get();
+            final long[] rowsB = splitB.get();
+
+            // partitions compared at the same time share the memory
+            final long limit = reservation.getBudget().getTotal() * 1024L * 1024L / threads;
+            final boolean[] hashed = new boolean[partitions];
+            long partitionBytes = SORT_ITEMS_PER_FILE * RECORD_BYTES;
+            for (int p = 0; p < partitions; ++p) {
+                final long bytes = (rowsA[p] + rowsB[p]) * ID_BYTES;
+                hashed[p] = bytes <= limit;
+                if (hashed[p]) {
+                    partitionBytes = Math.max(partitionBytes, bytes);
+                }
+            }
+            reservation.grow(buffers + threads * partitionBytes);
+
+            final List<File> partitionsMissing = new ArrayList<>();
+            final List<File> partitionsNew = new ArrayList<>();
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < partitions; ++p) {
+                final File partitionA = getPartitionFile(dir, "A", p, Codec.LZ4);
+                final File partitionB = getPartitionFile(dir, "B", p, Codec.LZ4);
+                final File partitionMissing = outputMissing == null ? null : getPartitionFile(dir, Status.MISSING.toString(), p, Codec.fromFileName(outputMissing.getName()));
+                final File partitionNew = outputNew == null ? null : getPartitionFile(dir, Status.NEW.toString(), p, Codec.fromFileName(outputNew.getName()));
+                partitionsMissing.add(partitionMissing);
+                partitionsNew.add(partitionNew);
+                final boolean hash = hashed[p];
+                futures.add(executor.submit(() -> {
+                    if (hash) {
+                        hashDifferences(partitionA, partitionB, partitionMissing, partitionNew, dateForCsv, gzipBlockSize);
+                        return null;
+                    }
+                    try (final SortedRecords recordsA = SortedRecords.open(partitionA);
+                            final SortedRecords recordsB = SortedRecords.open(partitionB)) {
+                        mergeDifferences(recordsA, recordsB, partitionMissing, partitionNew, null, dateForCsv, 1, gzipBlockSize);
+                    } catch (UnsortedException e) {
+                        try (final SortedRecords recordsA = SortedRecords.sort(partitionA);
+                                final SortedRecords recordsB = SortedRecords.sort(partitionB)) {
+                            mergeDifferences(recordsA, recordsB, partitionMissing, partitionNew, null, dateForCsv, 1, gzipBlockSize);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            if (outputMissing != null) {
+                concatenate(outputMissing, partitionsMissing, header, dateForCsv, gzipThreads, gzipBlockSize);
+            }
+            if (outputNew != null) {
+                concatenate(outputNew, partitionsNew, header, dateForCsv, gzipThreads, gzipBlockSize);
+            }
+            log.info("Compared {} with {} in {} partitions", fileA.getName(), fileB.getName(), partitions);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioe) {
+                throw ioe;
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            final File[] files = dir.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /**
+     * Splits a dump into partition files by the ids of the records.
+     *
+     * @param file Dump
+     * @param dir Directory of the partition files
+     * @param name Name of the partition files
+     * @param partitions Count of partitions
+     * @param sameRanges Ranges of ids, which are left out
+     * @return Count of records per partition
+     * @throws IOException
+     */
+    private static long[] split(File file, Path dir, String name, int partitions, Set<String> sameRanges) throws IOException {
+        final long[] rows = new long[partitions];
+        final OutputStream[] outputs = new OutputStream[partitions];
+        try (final CompareRecordReader reader = open(file)) {
+            final byte[] header = formatRow(reader.getHeader());
+            for (int p = 0; p < partitions; ++p) {
+                outputs[p] = new BufferedOutputStream(Codec.LZ4.compress(Files.newOutputStream(getPartitionFile(dir, name, p, Codec.LZ4).toPath())), BUFFER_SIZE);
+                outputs[p].write(header);
+            }
+            for (CompareRecord record = reader.read(); record != null; record = reader.read()) {
+                if (sameRanges.isEmpty() || !sameRanges.contains(Manifest.rangeOf(record.getId()))) {
+                    final int p = getPartition(record, partitions);
+                    outputs[p].write(record.getRow());
+                    outputs[p].write(RECORD_SEPARATOR);
+                    ++rows[p];
+                }
+            }
+        } finally {
+            for (OutputStream output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Partition of an id by its first two characters. Ids in a partition are
+     * never before the ids of a previous partition.
+     *
+     * @param record Record
+     * @param partitions Count of partitions
+     * @return Partition
+     */
+    private static int getPartition(CompareRecord record, int partitions) {
+        final int radix = ID_ALPHABET.length() + 1;
+        int key = 0;
+        for (int i = 0; i < 2; ++i) {
+            int rank = 0;
+            if (i < record.getIdLength()) {
+                final char c = (char) (record.getIdByte(i) & 0xff);
+                while (rank < ID_ALPHABET.length() && ID_ALPHABET.charAt(rank) < c) {
+                    ++rank;
+                }
+            }
+            key = key * radix + rank;
+        }
+        return key * partitions / (radix * radix);
+    }
+
+    private static File getPartitionFile(Path dir, String name, int partition, Codec codec) {
+        return dir.resolve(name + "-" + partition + codec.getExtension()).toFile();
+    }
+
+    /**
+     * Compares two partitions with hash sets of their ids. The differences are
+     * written in the order of the partitions and sorted afterwards, if the
+     * partitions are not sorted.
+     *
+     * @param partitionA Partition of the older file
+     * @param partitionB Partition of the newer file
+     * @param outputMissing MISSING partition or null
+     * @param outputNew NEW partition or null
+     * @param dateForCsv Timestamp of the records
+     * @param gzipBlockSize Uncompressed size of an output gzip block
+     * @throws IOException
+     */
+    static void hashDifferences(File partitionA, File partitionB, File outputMissing, File outputNew, Instant dateForCsv, int gzipBlockSize) throws IOException {
+        final Set<String> idsB = new HashSet<>();
+        if (outputMissing != null) {
+            try (final CompareRecordReader reader = open(partitionB)) {
+                for (CompareRecord record = reader.read(); record != null; record = reader.read()) {
+                    idsB.add(record.getId());
+                }
+            }
+        }
+        final Set<String> idsA = new HashSet<>();
+        boolean sorted;
+        int idColumn;
+        try (final CompareRecordReader reader = open(partitionA);
+                final DifferencePrinter printer = outputMissing == null ? null : new DifferencePrinter(outputMissing, null, reader.getHeader(), Status.MISSING, dateForCsv, 1, gzipBlockSize)) {
+            for (CompareRecord record = reader.read(); record != null; record = reader.read()) {
+                final String id = record.getId();
+                if (outputNew != null) {
+                    idsA.add(id);
+                }
+                if (printer != null && !idsB.contains(id)) {
+                    printer.print(record);
+                }
+            }
+            sorted = printer == null || printer.isSorted();
+            idColumn = reader.getIdColumn();
+        }
+        // the records are in the order of the dump, which is not sorted
+        if (!sorted) {
+            sortOutput(outputMissing, idColumn, 1, gzipBlockSize);
+        }
+        idsB.clear();
+        if (outputNew != null) {
+            try (final CompareRecordReader reader = open(partitionB);
+                    final DifferencePrinter printer = new DifferencePrinter(outputNew, null, reader.getHeader(), Status.NEW, dateForCsv, 1, gzipBlockSize)) {
+                for (CompareRecord record = reader.read(); record != null; record = reader.read()) {
+                    if (!idsA.contains(record.getId())) {
+                        printer.print(record);
+                    }
+                }
+                sorted = printer.isSorted();
+                idColumn = reader.getIdColumn();
+            }
+            if (!sorted) {
+                sortOutput(outputNew, idColumn, 1, gzipBlockSize);
+            }
+        }
+    }
+
+    /**
+     * Writes the header of a compare file and appends the compressed
+     * partitions as they are.
+     *
+     * @param output Compare file
+     * @param partitions Partitions in the order of their ids
+     * @param header Header of the compare file
+     * @param dateForCsv Timestamp of the records
+     * @param gzipThreads Count of threads compressing the output
+     * @param gzipBlockSize Uncompressed size of an output gzip block
+     * @throws IOException
+     */
+    private static void concatenate(File output, List<File> partitions, List<String> header, Instant dateForCsv, int gzipThreads, int gzipBlockSize) throws IOException {
+        new DifferencePrinter(output, header, null, null, dateForCsv, gzipThreads, gzipBlockSize).close();
+        try (final FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.APPEND)) {
+            for (File partition : partitions) {
+                try (final FileChannel in = FileChannel.open(partition.toPath())) {
+                    for (long position = 0, size = in.size(); position < size;) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge-join of two dumps sorted by id. Ids only in the older dump are
+     * MISSING and ids only in the newer dump are NEW.
+     *
+     * @throws UnsortedException if a dump is not sorted by id, the compare
+     * files are incomplete then
+     */
+    private static void mergeDifferences(SortedRecords recordsA, SortedRecords recordsB, File outputMissing, File outputNew, List<String> header, Instant dateForCsv, int gzipThreads, int gzipBlockSize) throws IOException {
+        try (final DifferencePrinter printerMissing = outputMissing == null ? null : new DifferencePrinter(outputMissing, header, recordsA.getHeader(), Status.MISSING, dateForCsv, gzipThreads, gzipBlockSize);
+                final DifferencePrinter printerNew = outputNew == null ? null : new DifferencePrinter(outputNew, header, recordsB.getHeader(), Status.NEW, dateForCsv, gzipThreads, gzipBlockSize)) {
+            CompareRecord recordA = recordsA.next();
+            CompareRecord recordB = recordsB.next();
+            while (recordA != null || recordB != null) {
+                final int c = recordA == null ? 1 : recordB == null ? -1 : recordA.compareTo(recordB);
+                if (c < 0) {
+                    if (printerMissing != null) {
+                        printerMissing.print(recordA);
+                    }
+                    recordA = recordsA.next();
+                } else if (c > 0) {
+                    if (printerNew != null) {
+                        printerNew.print(recordB);
+                    }
+                    recordB = recordsB.next();
+                } else {
+                    recordA = recordsA.next();
+                    recordB = recordsB.next();
+                }
+            }
+            if (printerMissing != null) {
+                log.info("{} compared with {} has {} differences with status {}", recordsA.getName(), recordsB.getName(), printerMissing.getCount(), Status.MISSING);
+            }
+            if (printerNew != null) {
+                log.info("{} compared with {} has {} differences with status {}", recordsB.getName(), recordsA.getName(), printerNew.getCount(), Status.NEW);
+            }
+        }
+    }
+
+    /**
+     * Writes the records of a dump with the given ids.
+     *
+     * @param file Dump
+     * @param ids Ids of the records
+     * @param output Compare file
+     * @param header Header of the compare file
+     * @param status Status of the records
+     * @param dateForCsv Timestamp of the records
+     * @param gzipThreads Count of threads compressing the output
+     * @param gzipBlockSize Uncompressed size of an output gzip block
+     * @throws IOException
+     */
+    private static void writeDifferences(File file, Set<String> ids, File output, List<String> header, Status status, Instant dateForCsv, int gzipThreads, int gzipBlockSize) throws IOException {
+        final boolean sorted;
+        try (final CompareRecordReader reader = open(file);
+                final DifferencePrinter printer = new DifferencePrinter(output, header, reader.getHeader(), status, dateForCsv, gzipThreads, gzipBlockSize)) {
+            if (!ids.isEmpty()) {
+                for (CompareRecord record = reader.read(); record != null; record = reader.read()) {
+                    if (ids.contains(record.getId())) {
+                        printer.print(record);
+                    }
+                }
+            }
+            sorted = printer.isSorted();
+            log.info("{} has {} differences with status {} by snapshot bitmaps", file.getName(), printer.getCount(), status);
+        }
+        // the records are in the order of the dump, which is not sorted
+        if (!sorted) {
+            sortOutput(output, -1, gzipThreads, gzipBlockSize);
+        }
+    }
+
+    /**
+     * Sorts a compare file or partition by id, which was written in the order
+     * of a dump, which is not sorted. The sorted file replaces it.
+     *
+     * @param output Compare file or partition
+     * @param idColumn Index of the id column of a partition without header
+     * or -1 for a compare file with header
+     * @param gzipThreads Count of threads compressing the output
+     * @param gzipBlockSize Uncompressed size of an output gzip block
+     * @throws IOException
+     */
+    private static void sortOutput(File output, int idColumn, int gzipThreads, int gzipBlockSize) throws IOException {
+        final File sortedOutput = new File(output.getParentFile(), "." + output.getName());
+        try {
+            final InputStream stream = Codec.open(output.toPath());
+            final CompareRecordReader reader;
+            try {
+                reader = idColumn < 0 ? new CompareRecordReader(stream) : new CompareRecordReader(stream, idColumn);
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+            try (final SortedRecords records = SortedRecords.sort(output.getName(), reader);
+                    final DifferencePrinter printer = new DifferencePrinter(sortedOutput, reader.getHeader(), null, null, null, gzipThreads, gzipBlockSize)) {
+                for (CompareRecord record = records.next(); record != null; record = records.next()) {
+                    printer.print(record);
+                }
+            }
+            Files.move(sortedOutput.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(sortedOutput.toPath());
+        }
+        log.info("Sorted {} by id", output.getName());
+    }
+
+    /**
+     * Ids of the older dump, which are not in the newer dump, by their
+     * snapshot bitmaps. The ids are resolved with the id dictionary and kept
+     * in memory, so large differences are left to the external sort.
+     *
+     * @param fileA Older file
+     * @param fileB Newer file
+     * @return Ids or null if a dump has no bitmap or there are too many
+     */
+    private static Set<String> getDifferentIds(File fileA, File fileB) {
+        final String dataPath = fileA.getParent() + File.separator;
+        final SnapshotBitmap bitmapA = Helper.getSnapshotBitmap(dataPath, Codec.baseName(fileA.getName()));
+        final SnapshotBitmap bitmapB = bitmapA == null ? null : Helper.getSnapshotBitmap(dataPath, Codec.baseName(fileB.getName()));
+        if (bitmapB == null) {
+            return null;
+        }
+        final RoaringBitmap difference = RoaringBitmap.andNot(bitmapA.getIds(), bitmapB.getIds());
+        if (difference.getCardinality() > MAX_BITMAP_DIFFERENCES) {
+            log.info("{} and {} have {} differences. Compare them by sorting.", fileA.getName(), fileB.getName(), difference.getCardinality());
+            return null;
+        }
+        final Set<String> ids = new HashSet<>();
+        try (final IdDictionary dictionary = IdDictionary.open(Path.of(dataPath + DICTIONARY_FILENAME))) {
+            for (final IntIterator it = difference.getIntIterator(); it.hasNext();) {
+                ids.add(dictionary.get(it.next()));
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
+            log.warn("Could not resolve ids of snapshot bitmaps of {} and {}. {}", fileA.getName(), fileB.getName(), e.getMessage());
+            return null;
+        }
+        return ids;
+    }
+
+    /**
+     *
+     * @param file Dump or partition
+     * @return Reader of the records with the header of the file
+     * @throws IOException
+     */
+    private static CompareRecordReader open(File file) throws IOException {
+        final InputStream stream = Codec.open(file.toPath());
+        try {
+            return new CompareRecordReader(stream);
+        } catch (IOException e) {
+            stream.close();
+            throw new IOException(file.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     *
+     * @param values Values of a row
+     * @return Row as written by {@link CSVFormat#DEFAULT}
+     */
+    private static byte[] formatRow(List<String> values) {
+        return (CSVFormat.DEFAULT.format(values.toArray()) + CSVFormat.DEFAULT.getRecordSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     *
+     * @param output Compare file
+     * @param gzipThreads Count of threads compressing the output
+     * @param gzipBlockSize Uncompressed size of an output gzip block
+     * @return Stream writing to the compare file with its codec
+     * @throws IOException
+     */
+    private static OutputStream createOutput(File output, int gzipThreads, int gzipBlockSize) throws IOException {
+        final OutputStream os = Files.newOutputStream(Path.of(output.getAbsolutePath()), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        return new BufferedOutputStream(new MemberOutputStream(os, Codec.fromFileName(output.getName()), 0, gzipThreads, gzipBlockSize), BUFFER_SIZE);
+    }
+
+    /**
+     * Writes records of a dump to a compare file with the timestamp and status
+     * of the compare. The rows are copied as they are, only the fields of
+     * timestamp and status are replaced.
+     */
+    static class DifferencePrinter implements Closeable {
+
+        private final OutputStream out;
+        private final byte[] timestamp;
+        private final byte[] status;
+        private final int timestampColumn;
+        private final int statusColumn;
+        private int count;
+        private CompareRecord last;
+        private boolean sorted = true;
+
+        /**
+         *
+         * @param output Compare file
+         * @param header Header of the compare file or null
+         * @param columns Header of the records or null
+         * @param status Status of the records or null to keep it
+         * @param dateForCsv Timestamp of the records or null to keep it
+         * @param gzipThreads Count of threads compressing the output
+         * @param gzipBlockSize Uncompressed size of an output gzip block
+         * @throws IOException
+         */
+        DifferencePrinter(File output, List<String> header, List<String> columns, Status status, Instant dateForCsv, int gzipThreads, int gzipBlockSize) throws IOException {
+            this.out = createOutput(output, gzipThreads, gzipBlockSize);
+            this.timestamp = dateForCsv == null ? null : dtf.format(dateForCsv).getBytes(StandardCharsets.UTF_8);
+            this.status = status == null ? null : status.toString().getBytes(StandardCharsets.UTF_8);
+            this.timestampColumn = columns == null || dateForCsv == null ? -1 : columns.indexOf("timestamp");
+            this.statusColumn = columns == null || status == null ? -1 : columns.indexOf("status");
             if (header != null) {
-                csvPrinter.printRecord(header);
+                out.write(formatRow(header));
+            }
+        }
+
+        void print(CompareRecord record) throws IOException {
+            if (last != null && record.compareTo(last) < 0) {
+                sorted = false;
             }
-            Iterable<CSVRecord> records = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(decoder);
-            for (CSVRecord record : records) {
-                final Map<String, String> map = record.toMap();
-                map.put("timestamp", dtf.format(dateForCsv));
-                if (status != null) {
-                    map.put("status", status.toString());
+            last = record;
+            final byte[] row = record.getRow();
+            int field = 0;
+            int start = 0;
+            boolean quoted = false;
+            for (int i = 0; i <= row.length; ++i) {
+                if (i < row.length) {
+                    if (row[i] == '"') {
+                        quoted = !quoted;
+                    }
+                    if (quoted || row[i] != ',') {
+                        continue;
+                    }
                 }
-                csvPrinter.printRecord(map.values());
-                if (lineCount++ % 1000 == 0) {
-                    csvPrinter.flush();
+                // end of a field
+                if (field == timestampColumn) {
+                    out.write(timestamp);
+                } else if (field == statusColumn) {
+                    out.write(status);
+                } else {
+                    out.write(row, start, i - start);
                 }
+                if (i < row.length) {
+                    out.write(',');
+                }
+                start = i + 1;
+                ++field;
             }
-            records = null; // free memory
-            // System.gc();
+            out.write(RECORD_SEPARATOR);
+            ++count;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        /**
+         *
+         * @return true if the records were printed in the order of their ids
+         */
+        boolean isSorted() {
+            return sorted;
         }
-        if (tmpFile.delete()) {
-            tmpFile.deleteOnExit();
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Records of a dump, which must be sorted by id.
+     */
+    private static class SortedRecords implements Closeable {
+
+        private final String name;
+        private final List<String> header;
+        private final Iterator<CompareRecord> records;
+        private final Closeable closeable;
+        private CompareRecord previous;
+
+        private SortedRecords(String name, List<String> header, Iterator<CompareRecord> records, Closeable closeable) {
+            this.name = name;
+            this.header = header;
+            this.records = records;
+            this.closeable = closeable;
+        }
+
+        /**
+         *
+         * @param file Dump
+         * @return Records of the dump as they are
+         * @throws IOException
+         */
+        private static SortedRecords open(File file) throws IOException {
+            final CompareRecordReader reader = Compare.open(file);
+            return new SortedRecords(file.getName(), reader.getHeader(), reader.iterator(), reader);
+        }
+
+        /**
+         * Sorts a dump with temporary files.
+         *
+         * @param file Dump
+         * @return Records of the dump sorted by id
+         * @throws IOException
+         */
+        private static SortedRecords sort(File file) throws IOException {
+            return sort(file.getName(), Compare.open(file));
+        }
+
+        /**
+         * Sorts the records of a reader with temporary files.
+         *
+         * @param name Name of the file of the reader
+         * @param reader Reader, which is closed with the sorted records
+         * @return Records sorted by id
+         * @throws IOException
+         */
+        private static SortedRecords sort(String name, CompareRecordReader reader) throws IOException {
+            try {
+                final Stream<CompareRecord> sorted = Sorter
+                        .serializer(CompareRecord.serializer(reader.getIdColumn()))
+                        .comparator(Comparator.<CompareRecord>naturalOrder())
+                        .inputItems(reader.iterator())
+                        .outputAsStream()
+                        .maxItemsPerFile(SORT_ITEMS_PER_FILE)
+                        .sort();
+                return new SortedRecords(name, reader.getHeader(), sorted.iterator(), () -> {
+                    sorted.close();
+                    reader.close();
+                });
+            } catch (RuntimeException e) {
+                reader.close();
+                throw e;
+            }
+        }
+
+        /**
+         *
+         * @return Next record or null at the end
+         * @throws UnsortedException if the id of the record is before the
+         * previous one
+         */
+        private CompareRecord next() throws UnsortedException {
+            if (!records.hasNext()) {
+                previous = null;
+                return null;
+            }
+            final CompareRecord record = records.next();
+            if (previous != null && record.compareTo(previous) < 0) {
+                throw new UnsortedException(name + " is not sorted by id at " + record.getId() + ".");
+            }
+            previous = record;
+            return record;
+        }
+
+        private List<String> getHeader() {
+            return header;
+        }
+
+        private String getName() {
+            return name;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeable.close();
+        }
+    }
+
+    private static class UnsortedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private UnsortedException(String message) {
+            super(message);
         }
-        log.info("{} compared with {} has {} differences with status {}", fileA.getName(), fileB.getName(), lineCount, status);
-        return lineCount;
     }
 
 }
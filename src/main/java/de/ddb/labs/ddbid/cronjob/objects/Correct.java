@@ -16,14 +16,18 @@
 package de.ddb.labs.ddbid.cronjob.objects;
 
 import de.ddb.labs.ddbid.Application;
+import de.ddb.labs.ddbid.cronjob.helper.BloomFilter;
+import de.ddb.labs.ddbid.cronjob.helper.Helper;
 import de.ddb.labs.ddbid.database.Database;
 import de.ddb.labs.ddbid.model.Status;
 import de.ddb.labs.ddbid.model.Type;
+import java.io.File;
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Comparator;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import lombok.extern.slf4j.Slf4j;
@@ -54,6 +58,15 @@ public class Correct implements Runnable {
     @Value(value = "${ddbid.apikey}")
     private String apiKey;
     
+    @Value(value = "${ddbid.datapath.item}")
+    private String dataPathItem;
+
+    @Value(value = "${ddbid.datapath.person}")
+    private String dataPathPerson;
+
+    @Value(value = "${ddbid.datapath.organization}")
+    private String dataPathOrganization;
+
     @Autowired
     private OkHttpClient httpClient;
 
@@ -78,19 +91,35 @@ public class Correct implements Runnable {
         log.info("Start checking {} MISSING {} if they're back again...", mi.entries().size(), type.getType().toLowerCase());
 
         String api = Application.API;
+        String dataPath = null;
         switch (type) {
-            case ITEM ->
+            case ITEM -> {
                 api += "/search/index/search/select?wt=csv&fl=id&q=id:";
-            case PERSON ->
+                dataPath = dataPathItem;
+            }
+            case PERSON -> {
                 api += "/search/index/person/select?wt=csv&fl=id&q=id:";
-            case ORGANIZATION ->
+                dataPath = dataPathPerson;
+            }
+            case ORGANIZATION -> {
                 api += "/search/index/organization/select?wt=csv&fl=id&q=id:";
+                dataPath = dataPathOrganization;
+            }
             default -> {
             }
         }
 
+        // ids which are not in the latest dump are still missing, only the
+        // others are checked with a request
+        final BloomFilter bloomFilter = getLatestBloomFilter(dataPath);
+        int skipped = 0;
+
         final AtomicInteger countItem = new AtomicInteger(0);
         for (Map.Entry<Integer, String> i : mi.entries()) {
+            if (bloomFilter != null && !bloomFilter.mightContain(i.getValue())) {
+                ++skipped;
+                continue;
+            }
 
             final Request request = new Request.Builder()
                     .url(api + URLEncoder.encode(i.getValue(), StandardCharsets.UTF_8))
@@ -120,9 +149,20 @@ public class Correct implements Runnable {
             });
         }
         while (httpClient.dispatcher().queuedCallsCount() > 0);
+        if (skipped > 0) {
+            log.info("{} MISSING {} are not in the latest dump and were not checked.", skipped, type.toString().toLowerCase());
+        }
         log.info("Done checking {} MISSING {}. {} are back again.", mi.entries().size(), type.toString().toLowerCase(), countItem.get());
     }
 
+    private static BloomFilter getLatestBloomFilter(String dataPath) {
+        if (dataPath == null) {
+            return null;
+        }
+        final File[] okDumps = Helper.getOkDumpFiles(dataPath, Comparator.naturalOrder()).toArray(File[]::new);
+        return okDumps.length == 0 ? null : Helper.getBloomFilter(okDumps[okDumps.length - 1]);
+    }
+
     private static int countLines(String str) {
         final String[] lines = str.split("\r\n|\r|\n");
         return lines.length;
@@ -15,24 +15,48 @@
  */
 package de.ddb.labs.ddbid.cronjob.objects;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import static de.ddb.labs.ddbid.Application.API;
+import de.ddb.labs.ddbid.cronjob.helper.BlockIndex;
+import de.ddb.labs.ddbid.cronjob.helper.BloomFilter;
+import de.ddb.labs.ddbid.cronjob.helper.Checkpoint;
+import de.ddb.labs.ddbid.cronjob.helper.Codec;
+import de.ddb.labs.ddbid.cronjob.helper.ColumnarWriter;
+import de.ddb.labs.ddbid.cronjob.helper.DumpWriter;
 import de.ddb.labs.ddbid.cronjob.helper.Helper;
-import static de.ddb.labs.ddbid.cronjob.objects.Compare.OK_FILENAME_EXT;
-import static de.ddb.labs.ddbid.cronjob.objects.Compare.OUTPUT_FILENAME_EXT;
+import de.ddb.labs.ddbid.cronjob.helper.IdDictionary;
+import de.ddb.labs.ddbid.cronjob.helper.Manifest;
+import de.ddb.labs.ddbid.cronjob.helper.MemoryBudget;
+import de.ddb.labs.ddbid.cronjob.helper.PageSizeController;
+import de.ddb.labs.ddbid.cronjob.helper.SnapshotBitmap;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.BITMAP_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.BLOOM_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.CHECKPOINT_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.COLUMNAR_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.INDEX_FILENAME_EXT;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.DICTIONARY_FILENAME;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.MANIFEST_FILENAME_EXT;
 import de.ddb.labs.ddbid.model.Doc;
 import de.ddb.labs.ddbid.model.item.ItemDoc;
 import de.ddb.labs.ddbid.model.organization.OrganizationDoc;
 import de.ddb.labs.ddbid.model.person.PersonDoc;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.io.BufferedWriter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -42,18 +66,37 @@ import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -63,11 +106,21 @@ import org.springframework.stereotype.Service;
 public class Dump implements Runnable {
 
     private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(ZoneId.systemDefault());
-    public static final int ENTITYCOUNT = 100000; // count of entities per query
     public static final int MONTH_TO_KEEP_DUMPS = 1; // number of mont dumps shoult be kept
-    private static final String QUERY_ITEM = "/search/index/search/select?q=*:*&wt=json&fl=id,provider_item_id,label,provider_id,supplier_id,dataset_id,sector_fct&sort=id ASC&rows=" + ENTITYCOUNT;
-    private static final String QUERY_PERSON = "/search/index/person/select?q=*:*&wt=json&fl=id,variant_id,preferredName,type&sort=id ASC&rows=" + ENTITYCOUNT;
-    private static final String QUERY_ORGANIZATION = "/search/index/organization/select?q=*:*&wt=json&fl=id,variant_id,preferredName,type&sort=id ASC&rows=" + ENTITYCOUNT;
+    public static final String PART_FILENAME_INFIX = ".part"; // infix of shard files
+    public static final String DELTA_FILENAME_INFIX = ".delta"; // infix of changed documents of an incremental dump
+    public static final String IDS_FILENAME_INFIX = ".ids"; // infix of all ids of an incremental dump
+    private static final FetchedPage END_OF_PAGES = new FetchedPage(List.of(), new PageResult(), 0, 0, null); // marks the end of the prefetch queue
+    private static final MemoryBudget PREFETCH_BUDGET = MemoryBudget.ofHeap(0.25); // heap of the prefetched pages of all dumps
+    public static final String FORMAT_JSON = "json"; // response format with cursorMark paging
+    public static final String FORMAT_CSV = "csv"; // response format with id keyset paging
+    private static final String ID_ALPHABET = "234567ABCDEFGHIJKLMNOPQRSTUVWXYZ"; // base32 alphabet of DDB ids in ascending order
+    private static final Set<String> DICTIONARY_COLUMNS = Set.of("timestamp", "status", "provider_id", "dataset_id", "supplier_id", "sector_fct", "type"); // columns with few distinct values
+    private static final Set<String> MULTIVALUED_FIELDS = Set.of("label", "provider_id", "variant_id"); // fields rendered as [a, b]
+    // response format (wt), cursor and rows are added per request
+    private static final String QUERY_ITEM = "/search/index/search/select?q=*:*&fl=id,provider_item_id,label,provider_id,supplier_id,dataset_id,sector_fct&sort=id ASC";
+    private static final String QUERY_PERSON = "/search/index/person/select?q=*:*&fl=id,variant_id,preferredName,type&sort=id ASC";
+    private static final String QUERY_ORGANIZATION = "/search/index/organization/select?q=*:*&fl=id,variant_id,preferredName,type&sort=id ASC";
 
     @Value(value = "${ddbid.datapath.item}")
     private String dataPathItem;
@@ -78,6 +131,84 @@ public class Dump implements Runnable {
     @Value(value = "${ddbid.datapath.organization}")
     private String dataPathOrganization;
 
+    @Value("${ddbid.dump.shards}")
+    private int shards;
+
+    @Value("${ddbid.dump.concurrency}")
+    private int concurrency;
+
+    @Value("${ddbid.dump.parallel}")
+    private int parallelTypes;
+
+    @Value("${ddbid.dump.prefetch}")
+    private int prefetch;
+
+    @Value("${ddbid.dump.checkpoint}")
+    private int checkpointPages;
+
+    @Value("${ddbid.dump.retry.maxAttempts}")
+    private int retryMaxAttempts;
+
+    @Value("${ddbid.dump.retry.delay}")
+    private long retryDelay;
+
+    @Value("${ddbid.dump.retry.maxDelay}")
+    private long retryMaxDelay;
+
+    @Value("${ddbid.dump.retry.maxRetryAfter}")
+    private long retryMaxRetryAfter;
+
+    @Value("${ddbid.dump.retry.maxDuration}")
+    private long retryMaxDuration;
+
+    @Value("${ddbid.gzip.threads}")
+    private int gzipThreads;
+
+    @Value("${ddbid.gzip.blocksize}")
+    private int gzipBlockSize;
+
+    @Value("${ddbid.dump.format}")
+    private String responseFormat;
+
+    @Value("${ddbid.dump.rows.min}")
+    private int minRows;
+
+    @Value("${ddbid.dump.rows.max}")
+    private int maxRows;
+
+    @Value("${ddbid.dump.rows.target}")
+    private long targetPageMillis;
+
+    @Value("${ddbid.dump.incremental}")
+    private boolean incremental;
+
+    @Value("${ddbid.dump.incremental.dateformat}")
+    private String incrementalDateFormat;
+
+    @Value("${ddbid.dump.columnar}")
+    private boolean columnar;
+
+    @Value("${ddbid.dump.index}")
+    private boolean blockIndex;
+
+    @Value("${ddbid.dump.bloom}")
+    private boolean bloom;
+
+    @Value("${ddbid.dump.bloom.fpp}")
+    private double bloomFpp;
+
+    @Value("${ddbid.dump.codec}")
+    private String codec;
+
+    @Value("${ddbid.dump.dictionary}")
+    private boolean dictionary;
+
+    @Value("${ddbid.dump.bitmap}")
+    private boolean bitmap;
+
+    @Value("${ddbid.archive.base.months}")
+    private int archiveBaseMonths;
+
     @Value("${ddbid.dump.lockfile}")
     private String lockfile;
 
@@ -87,6 +218,11 @@ public class Dump implements Runnable {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, AtomicInteger> rowsGauges = new ConcurrentHashMap<>();
+
     @Value(value = "${ddbid.apikey}")
     private String apiKey;
 
@@ -99,22 +235,42 @@ public class Dump implements Runnable {
         } catch (IOException ex) {
             log.warn("Could not wrte lockfile. {}", ex.getMessage());
         }
+        // each type is dumped on its own worker and fails on its own, so a
+        // failed dump does not touch the OK file of another type
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelTypes, 3)));
         try {
-            dumpItem();
-        } catch (Exception e) {
-            log.error("{}", e.getMessage());
-        }
-
-        try {
-            dumpPerson();
-        } catch (Exception e) {
-            log.error("{}", e.getMessage());
-        }
-
-        try {
-            dumpOrganization();
-        } catch (Exception e) {
+            final List<Future<?>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> {
+                try {
+                    dumpItem();
+                } catch (Exception e) {
+                    log.error("{}", e.getMessage());
+                }
+            }));
+            futures.add(executor.submit(() -> {
+                try {
+                    dumpPerson();
+                } catch (Exception e) {
+                    log.error("{}", e.getMessage());
+                }
+            }));
+            futures.add(executor.submit(() -> {
+                try {
+                    dumpOrganization();
+                } catch (Exception e) {
+                    log.error("{}", e.getMessage());
+                }
+            }));
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            log.warn("Dump was interrupted. {}", e.getMessage());
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
             log.error("{}", e.getMessage());
+        } finally {
+            executor.shutdown();
         }
 
         try {
@@ -126,8 +282,10 @@ public class Dump implements Runnable {
 
     public void dumpItem() {
         try {
-            Helper.deleteOlderDumps(dataPathItem, LocalDate.now().minusMonths(MONTH_TO_KEEP_DUMPS));
-            createNewDump(QUERY_ITEM, dataPathItem, ItemDoc.class);
+            Helper.deleteOlderDumps(dataPathItem, LocalDate.now().minusMonths(MONTH_TO_KEEP_DUMPS), archiveBaseMonths);
+            if (!incremental || createIncrementalDump(QUERY_ITEM, dataPathItem, ItemDoc.class) == null) {
+                createNewDump(QUERY_ITEM, dataPathItem, ItemDoc.class, shards);
+            }
         } catch (NoSuchMethodException | InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
             log.error("Error while dumping ITEMS. {}", ex.getMessage());
         } catch (IOException ex) {
@@ -138,8 +296,8 @@ public class Dump implements Runnable {
     public void dumpPerson() {
 
         try {
-            Helper.deleteOlderDumps(dataPathPerson, LocalDate.now().minusMonths(MONTH_TO_KEEP_DUMPS));
-            createNewDump(QUERY_PERSON, dataPathPerson, PersonDoc.class);
+            Helper.deleteOlderDumps(dataPathPerson, LocalDate.now().minusMonths(MONTH_TO_KEEP_DUMPS), archiveBaseMonths);
+            createNewDump(QUERY_PERSON, dataPathPerson, PersonDoc.class, 1);
         } catch (NoSuchMethodException | InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
             log.error("Error while dumping PERSON. {}", ex.getMessage());
         } catch (IOException ex) {
@@ -149,8 +307,8 @@ public class Dump implements Runnable {
 
     public void dumpOrganization() {
         try {
-            Helper.deleteOlderDumps(dataPathOrganization, LocalDate.now().minusMonths(MONTH_TO_KEEP_DUMPS));
-            createNewDump(QUERY_ORGANIZATION, dataPathOrganization, OrganizationDoc.class);
+            Helper.deleteOlderDumps(dataPathOrganization, LocalDate.now().minusMonths(MONTH_TO_KEEP_DUMPS), archiveBaseMonths);
+            createNewDump(QUERY_ORGANIZATION, dataPathOrganization, OrganizationDoc.class, 1);
         } catch (NoSuchMethodException | InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
             log.error("Error while dumping ORGANIZATION. {}", ex.getMessage());
         } catch (IOException ex) {
@@ -159,88 +317,1124 @@ public class Dump implements Runnable {
     }
 
     @SuppressFBWarnings(value = "REC_CATCH_EXCEPTION", justification = "I don't understand the problem, SpotBug!")
-    public File createNewDump(String query, String dataPath, Class docType) throws NoSuchMethodException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, IOException  {
+    public File createNewDump(String query, String dataPath, Class<? extends Doc> docType, int shardCount) throws NoSuchMethodException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, IOException {
 
         log.info("Start to dump DDB-Ids...");
         final Timestamp currentTime = Timestamp.valueOf(ZonedDateTime.now().toLocalDateTime());
-        final Doc docInstance = (Doc) docType.getDeclaredConstructor().newInstance();
+        final Doc docInstance = docType.getDeclaredConstructor().newInstance();
 
-        final String outputFileNameWithoutExt = dataPath + new SimpleDateFormat("yyyy-MM-dd").format(currentTime);
-        final String outputFileName = outputFileNameWithoutExt + OUTPUT_FILENAME_EXT;
+        // a cancelled dump with checkpoints is continued instead of starting a new one
+        final String resumableDump = Helper.getResumableDump(dataPath);
+        final String outputFileNameWithoutExt = dataPath + (resumableDump != null ? resumableDump : new SimpleDateFormat("yyyy-MM-dd").format(currentTime));
+        final Codec dumpCodec = resumableDump != null ? getResumableCodec(outputFileNameWithoutExt) : Codec.of(codec);
+        final String outputFileName = outputFileNameWithoutExt + dumpCodec.getExtension();
         final File outputFile = new File(outputFileName);
-        if (outputFile.exists()) {
-            throw new IllegalStateException("File " + outputFileName + " already exists.");
+        if (resumableDump != null) {
+            log.info("Resume cancelled dump {}", outputFileName);
+        } else if (getExistingDump(outputFileNameWithoutExt) != null) {
+            throw new IllegalStateException("File " + getExistingDump(outputFileNameWithoutExt) + " already exists.");
         }
-        int totalCount = -1;
+        final List<String> filters = createShardFilters(shardCount);
+        final int workers = filters.size() == 1 ? 1 : Math.max(1, Math.min(filters.size(), Math.min(concurrency, httpClient.dispatcher().getMaxRequestsPerHost())));
+        // all ranges of a dump share one page size, every worker holds the
+        // prefetched pages, the page in the writer and the page in transfer
+        final PageSizeController pageSize = new PageSizeController(docType.getSimpleName(), minRows, maxRows, targetPageMillis, workers * (Math.max(0, prefetch) + 2), getRowsGauge(docType));
+        final BloomFilter bloomFilter = createBloomFilter(query);
+        int totalCount = 0;
         int processedCount = 0;
         boolean errorOccurred = false;
-        try (final OutputStream os = Files.newOutputStream(Path.of(outputFileName), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE); final OutputStreamWriter ow = new OutputStreamWriter(new GZIPOutputStream(os), StandardCharsets.UTF_8); final BufferedWriter bw = new BufferedWriter(ow); final CSVPrinter outputWriter = new CSVPrinter(bw, CSVFormat.DEFAULT.withFirstRecordAsHeader())) {
-            outputWriter.printRecord(docInstance.getHeader());
-            log.info("Writing data to dump file {}", outputFileName);
-            String lastCursorMark = "";
-            String nextCursorMark = "*";
-            while (!lastCursorMark.equals(nextCursorMark) && !nextCursorMark.isBlank() && !errorOccurred) {
-                // initial request
-                final Request request = new Request.Builder()
-                        .url(API + query + "&cursorMark=" + URLEncoder.encode(nextCursorMark, StandardCharsets.UTF_8))
-                        .addHeader("Accept", "application/json")
-                        .addHeader("Authorization", "OAuth oauth_consumer_key=\"" + apiKey + "\"").build();
-                log.info("Execute request \"{}\"", request.url());
-                JsonNode doc;
-                List<Doc> ec;
-                try (final Response response = httpClient.newCall(request).execute()) {
-                    if (!response.isSuccessful()) {
+        boolean resumable = false;
+        if (filters.size() == 1) {
+            try {
+                final int[] counts = new RangeDump(query, filters.get(0), Path.of(outputFileName), docType, docInstance.getHeader(), true, pageSize, blockIndex, bloomFilter).run();
+                totalCount = counts[0];
+                processedCount = counts[1];
+            } catch (Exception e) {
+                errorOccurred = true;
+                resumable = Files.exists(toCheckpoint(Path.of(outputFileName)));
+                log.error("{}", e.getMessage());
+            }
+        } else {
+            // every shard walks its own cursorMark chain into a part file
+            final List<Path> parts = new ArrayList<>();
+            for (int i = 0; i < filters.size(); ++i) {
+                parts.add(Path.of(outputFileNameWithoutExt + PART_FILENAME_INFIX + i + dumpCodec.getExtension()));
+            }
+            log.info("Dump {} shards with {} workers", filters.size(), workers);
+            final ExecutorService executor = Executors.newFixedThreadPool(workers);
+            try {
+                final List<Future<int[]>> futures = new ArrayList<>();
+                for (int i = 0; i < filters.size(); ++i) {
+                    final RangeDump rangeDump = new RangeDump(query, filters.get(i), parts.get(i), docType, docInstance.getHeader(), i == 0, pageSize, blockIndex, bloomFilter);
+                    futures.add(executor.submit(rangeDump::run));
+                }
+                for (Future<int[]> future : futures) {
+                    try {
+                        final int[] counts = future.get();
+                        totalCount += counts[0];
+                        processedCount += counts[1];
+                    } catch (ExecutionException e) {
+                        errorOccurred = true;
+                        log.error("{}", e.getCause().getMessage());
+                    } catch (InterruptedException e) {
                         errorOccurred = true;
-                        log.warn("API respose code {} for {}", response.code(), response);
-                        break;
+                        Thread.currentThread().interrupt();
                     }
-                    doc = objectMapper.readTree(response.body().byteStream());
-                    if (totalCount == -1) {
-                        totalCount = doc.get("response").get("numFound").asInt(0);
+                }
+                if (!errorOccurred) {
+                    // parts are id-sorted ranges in ascending order, so a plain
+                    // concatenation of the members is an id-sorted dump
+                    final BlockIndex index = blockIndex ? new BlockIndex(docInstance.getHeader()) : null;
+                    long shift = 0;
+                    try (final OutputStream os = Files.newOutputStream(Path.of(outputFileName), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                        for (Path part : parts) {
+                            if (index != null && Files.exists(toIndex(part))) {
+                                index.append(BlockIndex.read(toIndex(part)), shift);
+                            }
+                            shift += Files.copy(part, os);
+                        }
                     }
-                    // set cursorMarks
-                    lastCursorMark = nextCursorMark;
-                    nextCursorMark = doc.get("nextCursorMark").asText("");
-
-                    ec = objectMapper.treeToValue(
-                            doc.get("response").get("docs"),
-                            objectMapper.getTypeFactory().constructCollectionType(List.class, docType)
-                    );
-                    for (Doc e : ec) {
-                        outputWriter.printRecord(e.getData());
+                    if (index != null) {
+                        index.write(toIndex(Path.of(outputFileName)));
                     }
-                    processedCount += ec.size();
-                    log.info("{} of {} processed...", processedCount, totalCount);
-                } finally {
-                    // free memory
-                    outputWriter.flush();
-                    doc = null;
-                    ec = null;
-                    // System.gc();
                 }
-                // for testing
-                // break;
+            } catch (IOException e) {
+                errorOccurred = true;
+                log.error("{}", e.getMessage());
+            } finally {
+                executor.shutdownNow();
+                // keep parts which can be resumed in the next run
+                for (Path part : parts) {
+                    if (errorOccurred && Files.exists(toCheckpoint(part))) {
+                        resumable = true;
+                        continue;
+                    }
+                    Files.deleteIfExists(part);
+                    Files.deleteIfExists(toCheckpoint(part));
+                    Files.deleteIfExists(toIndex(part));
+                }
             }
-        } catch (Exception e) {
-            errorOccurred = true;
-            log.error("{}", e.getMessage());
         }
 
         if (totalCount > processedCount) {
             log.warn("Total object count is {}, but processed object count is only {}", totalCount, processedCount);
+            // the walk is finished, so there is nothing to resume
+            Helper.deleteCheckpoints(dataPath, outputFile);
             errorOccurred = true;
+            resumable = false;
         }
 
         if (errorOccurred) {
-            Files.delete(Path.of(outputFileName));
-            log.warn("An error occured and the process was stopped. Corrupt dump {} was deleted, too.", outputFileName);
+            if (resumable) {
+                log.warn("An error occured and the process was stopped. Dump {} will be resumed in the next run.", outputFileName);
+            } else {
+                Files.deleteIfExists(Path.of(outputFileName));
+                log.warn("An error occured and the process was stopped. Corrupt dump {} was deleted, too.", outputFileName);
+            }
             throw new RuntimeException("An error occured while processing the dump");
         } else {
-            // write OK file
-            Files.write(Path.of(outputFileNameWithoutExt + OK_FILENAME_EXT), List.of(dtf.format(Instant.now())), StandardCharsets.UTF_8);
+            Helper.deleteCheckpoints(dataPath, outputFile);
+            writeColumnar(outputFile.toPath());
+            writeBloomFilter(outputFileNameWithoutExt, bloomFilter);
+            // write manifest
+            writeManifest(outputFile.toPath(), outputFileNameWithoutExt);
             log.info("Wrote successfull data to dump file {}", outputFileName);
         }
         return outputFile;
     }
 
+    /**
+     * Creates a dump from the previous dump and the changes since then. Only
+     * documents with a last_update after the day before the previous dump are
+     * requested with all fields. A second pass requests only the ids of all
+     * documents to find deleted and unchanged ones. Both are merged with the
+     * previous dump into a file with the same content as a full dump.
+     *
+     * @param query Solr query
+     * @param dataPath Data path
+     * @param docType Type of the documents
+     * @return Dump file or null if a full dump is needed, e.g. because there is
+     * no previous dump or the changes are inconsistent with it
+     */
+    public File createIncrementalDump(String query, String dataPath, Class<? extends Doc> docType) {
+        if (Helper.getResumableDump(dataPath) != null) {
+            log.info("A cancelled dump in {} will be resumed. Skip incremental dump.", dataPath);
+            return null;
+        }
+        final File[] okDumps = Helper.getOkDumpFiles(dataPath, Comparator.naturalOrder()).toArray(File[]::new);
+        if (okDumps.length == 0) {
+            log.info("There is no previous dump in {}. Incremental dump is not possible.", dataPath);
+            return null;
+        }
+        final File previousDump = okDumps[okDumps.length - 1];
+        final String outputFileNameWithoutExt = dataPath + new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+        final Codec dumpCodec = Codec.of(codec);
+        final File outputFile = new File(outputFileNameWithoutExt + dumpCodec.getExtension());
+        if (getExistingDump(outputFileNameWithoutExt) != null) {
+            throw new IllegalStateException("File " + getExistingDump(outputFileNameWithoutExt) + " already exists.");
+        }
+        // both are read once right away, so they're compressed for speed
+        final Path deltaFile = Path.of(outputFileNameWithoutExt + DELTA_FILENAME_INFIX + Codec.LZ4.getExtension());
+        final Path idsFile = Path.of(outputFileNameWithoutExt + IDS_FILENAME_INFIX + Codec.LZ4.getExtension());
+
+        // the previous dump was started on the day of its name, changes during
+        // its run are covered by starting one day earlier
+        final LocalDate previousDate = LocalDate.parse(previousDump.getName().substring(0, 10));
+        final String since = DateTimeFormatter.ofPattern(incrementalDateFormat).withZone(ZoneOffset.UTC).format(previousDate.minusDays(1).atStartOfDay(ZoneId.systemDefault()));
+        final String changedFilter = "last_update:[\"" + since + "\" TO *]";
+        log.info("Start incremental dump of {} with changes since {}", previousDump, since);
+        try {
+            final List<String> header = docType.getDeclaredConstructor().newInstance().getHeader();
+            final int pagesInMemory = Math.max(0, prefetch) + 2;
+            final int[] changed = new RangeDump(query, changedFilter, deltaFile, docType, header, true, new PageSizeController(docType.getSimpleName(), minRows, maxRows, targetPageMillis, pagesInMemory, getRowsGauge(docType)), false, null).run();
+            final int[] ids = new RangeDump(query.replaceFirst("&fl=[^&]*", "&fl=id"), "", idsFile, docType, header, true, new PageSizeController(docType.getSimpleName() + " ids", minRows, maxRows, targetPageMillis, pagesInMemory, null), false, null).run();
+            if (changed[0] > changed[1] || ids[0] > ids[1]) {
+                log.warn("Incremental dump of {} is incomplete. Do a full dump.", dataPath);
+                return null;
+            }
+            log.info("{} of {} documents changed since {}", changed[1], ids[1], since);
+            final BloomFilter bloomFilter = bloom ? new BloomFilter(ids[1], bloomFpp) : null;
+            final int count = mergeDelta(previousDump.toPath(), deltaFile, idsFile, outputFile.toPath(), header, bloomFilter);
+            if (count != ids[1]) {
+                Files.deleteIfExists(outputFile.toPath());
+                return null;
+            }
+            writeColumnar(outputFile.toPath());
+            writeBloomFilter(outputFileNameWithoutExt, bloomFilter);
+            // write manifest
+            writeManifest(outputFile.toPath(), outputFileNameWithoutExt);
+            log.info("Wrote successfull incremental data to dump file {}", outputFile);
+            return outputFile;
+        } catch (Exception e) {
+            log.error("Incremental dump of {} failed. Do a full dump. {}", dataPath, e.getMessage());
+            if (!outputFile.delete()) {
+                outputFile.deleteOnExit();
+            }
+            return null;
+        } finally {
+            for (Path p : List.of(deltaFile, idsFile, toCheckpoint(deltaFile), toCheckpoint(idsFile), toIndex(outputFile.toPath()))) {
+                if (p.equals(toIndex(outputFile.toPath())) && outputFile.exists()) {
+                    continue;
+                }
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException e) {
+                    log.warn("Could not delete {}. {}", p, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges three id-sorted files into a new dump. Every id of the current
+     * ids is taken from the changed documents or, if it did not change, from
+     * the previous dump.
+     *
+     * @param previousDump Previous dump
+     * @param deltaFile Changed documents
+     * @param idsFile Ids of all current documents
+     * @param output New dump
+     * @param header Header of the dump
+     * @param bloomFilter Filter of the ids of the new dump or null
+     * @return Count of written documents or -1 if an id is in neither of
+     * both, i.e. the new dump would be incomplete
+     * @throws IOException
+     */
+    private int mergeDelta(Path previousDump, Path deltaFile, Path idsFile, Path output, List<String> header, BloomFilter bloomFilter) throws IOException {
+        int count = 0;
+        final BlockIndex index = blockIndex ? new BlockIndex(header) : null;
+        try (final CSVParser previous = openDump(previousDump);
+                final CSVParser changed = openDump(deltaFile);
+                final CSVParser current = openDump(idsFile);
+                final DumpWriter printer = new DumpWriter(output, 0, gzipThreads, gzipBlockSize, header, index, bloomFilter)) {
+            if (!previous.getHeaderNames().equals(header)) {
+                log.warn("Header of {} differs from {}", previousDump, header);
+                return -1;
+            }
+            printer.printHeader();
+            final Iterator<CSVRecord> previousIt = previous.iterator();
+            final Iterator<CSVRecord> changedIt = changed.iterator();
+            CSVRecord p = previousIt.hasNext() ? previousIt.next() : null;
+            CSVRecord c = changedIt.hasNext() ? changedIt.next() : null;
+            for (CSVRecord record : current) {
+                final String id = record.get("id");
+                // documents deleted in the meantime are skipped
+                while (c != null && c.get("id").compareTo(id) < 0) {
+                    c = changedIt.hasNext() ? changedIt.next() : null;
+                }
+                while (p != null && p.get("id").compareTo(id) < 0) {
+                    p = previousIt.hasNext() ? previousIt.next() : null;
+                }
+                if (c != null && c.get("id").equals(id)) {
+                    printRecord(printer, c);
+                } else if (p != null && p.get("id").equals(id)) {
+                    printRecord(printer, p);
+                } else {
+                    log.warn("{} is neither in {} nor in the changed documents", id, previousDump);
+                    return -1;
+                }
+                ++count;
+            }
+        }
+        if (index != null) {
+            index.write(toIndex(output));
+        }
+        return count;
+    }
+
+    private static CSVParser openDump(Path dump) throws IOException {
+        final Reader reader = new InputStreamReader(Codec.open(dump), StandardCharsets.UTF_8);
+        return CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(reader);
+    }
+
+    /**
+     * Prints a record of a dump again. Empty values are printed as null, like
+     * missing values of a response, so the line is the same.
+     */
+    private static void printRecord(DumpWriter printer, CSVRecord record) throws IOException {
+        final Object[] values = new Object[record.size()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = record.get(i).isEmpty() ? null : record.get(i);
+        }
+        printer.printRecord(values);
+    }
+
+    /**
+     * Writes the columnar snapshot of a finished dump. The snapshot is
+     * optional for all readers, so a failure does not fail the dump.
+     *
+     * @param dump Dump file
+     */
+    private void writeColumnar(Path dump) {
+        if (!columnar) {
+            return;
+        }
+        final Path columnarFile = dump.resolveSibling(Codec.baseName(dump.getFileName().toString()) + COLUMNAR_FILENAME_EXT);
+        try {
+            final long rows = ColumnarWriter.fromDump(dump, columnarFile, DICTIONARY_COLUMNS);
+            log.info("Wrote columnar snapshot {} with {} rows", columnarFile, rows);
+        } catch (IOException e) {
+            log.warn("Could not write columnar snapshot {}. {}", columnarFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the bloom filter of a new dump, sized for the current count of
+     * documents. Without the count there is no filter, like with
+     * ddbid.dump.bloom=false.
+     *
+     * @param query Solr query
+     * @return Empty filter or null
+     */
+    private BloomFilter createBloomFilter(String query) {
+        if (!bloom) {
+            return null;
+        }
+        try {
+            // leave some room for documents indexed during the dump
+            final long expected = requestNumFound(query) * 11L / 10;
+            return new BloomFilter(expected, bloomFpp);
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Could not create bloom filter. {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the bloom filter of a finished dump. The filter is optional for
+     * all readers, so a failure does not fail the dump.
+     *
+     * @param outputFileNameWithoutExt Dump file name without extension
+     * @param bloomFilter Filter or null
+     */
+    private void writeBloomFilter(String outputFileNameWithoutExt, BloomFilter bloomFilter) {
+        if (bloomFilter == null) {
+            return;
+        }
+        final Path bloomFile = Path.of(outputFileNameWithoutExt + BLOOM_FILENAME_EXT);
+        try {
+            bloomFilter.write(bloomFile);
+            log.info("Wrote bloom filter {} with {} ids", bloomFile, bloomFilter.getCount());
+        } catch (IOException e) {
+            log.warn("Could not write bloom filter {}. {}", bloomFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the manifest of a finished dump. The ids are added to the id
+     * dictionary of the data path and to the snapshot bitmap of the dump in
+     * the same pass. Both are optional, so a failure does not fail the dump.
+     *
+     * @param dump Dump file
+     * @param outputFileNameWithoutExt Dump file name without extension
+     * @throws IOException
+     */
+    private void writeManifest(Path dump, String outputFileNameWithoutExt) throws IOException {
+        final Instant created = Instant.now();
+        final Path manifestFile = Path.of(outputFileNameWithoutExt + MANIFEST_FILENAME_EXT);
+        final Path dictionaryFile = dump.resolveSibling(DICTIONARY_FILENAME);
+        final IdDictionary ids = dictionary ? openDictionary(dictionaryFile) : null;
+        if (ids == null) {
+            Manifest.create(dump, created).write(manifestFile);
+            return;
+        }
+        try (ids) {
+            final int before = ids.size();
+            final AtomicBoolean failed = new AtomicBoolean();
+            final SnapshotBitmap snapshot = bitmap ? new SnapshotBitmap() : null;
+            Manifest.create(dump, created, record -> {
+                final String id = record.get("id");
+                try {
+                    if (!failed.get()) {
+                        final int ordinal = ids.getOrAdd(id);
+                        if (snapshot != null) {
+                            snapshot.add(record, ordinal);
+                        }
+                    }
+                } catch (IOException e) {
+                    failed.set(true);
+                    log.warn("Could not add id {} to dictionary {}. {}", id, dictionaryFile, e.getMessage());
+                }
+            }).write(manifestFile);
+            log.info("Added {} new ids to dictionary {} with {} ids", ids.size() - before, dictionaryFile, ids.size());
+            // a bitmap with missing ids would give wrong compares
+            if (snapshot != null && !failed.get()) {
+                final Path bitmapFile = Path.of(outputFileNameWithoutExt + BITMAP_FILENAME_EXT);
+                try {
+                    snapshot.write(bitmapFile);
+                    log.info("Wrote snapshot bitmap {} with {} ids", bitmapFile, snapshot.getIds().getCardinality());
+                } catch (IOException e) {
+                    log.warn("Could not write snapshot bitmap {}. {}", bitmapFile, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private IdDictionary openDictionary(Path dictionaryFile) {
+        try {
+            return IdDictionary.open(dictionaryFile);
+        } catch (IOException e) {
+            log.warn("Could not open dictionary {}. {}", dictionaryFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Solr's CSV response does not contain numFound, so it's requested
+     * separately.
+     */
+    private int requestNumFound(String query) throws IOException {
+        final Request request = createRequest(API + query + "&rows=0&wt=json");
+        return executeWithRetry(request, r -> {
+            try (r) {
+                return objectMapper.readTree(r.body().byteStream()).path("response").path("numFound").asInt(0);
+            }
+        });
+    }
+
+    private static Path toIndex(Path output) {
+        return output.resolveSibling(Codec.baseName(output.getFileName().toString()) + INDEX_FILENAME_EXT);
+    }
+
+    private static Path toCheckpoint(Path output) {
+        return output.resolveSibling(Codec.baseName(output.getFileName().toString()) + CHECKPOINT_FILENAME_EXT);
+    }
+
+    /**
+     *
+     * @param outputFileNameWithoutExt Dump file name without extension
+     * @return Dump file with any codec or null
+     */
+    private static File getExistingDump(String outputFileNameWithoutExt) {
+        for (Codec c : Codec.values()) {
+            final File file = new File(outputFileNameWithoutExt + c.getExtension());
+            if (file.exists()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A cancelled dump is resumed with the codec it was started with, even if
+     * ddbid.dump.codec changed in the meantime.
+     *
+     * @param outputFileNameWithoutExt Dump file name without extension
+     * @return Codec of the dump or its first shard
+     */
+    private Codec getResumableCodec(String outputFileNameWithoutExt) {
+        for (Codec c : Codec.values()) {
+            if (new File(outputFileNameWithoutExt + c.getExtension()).exists() || new File(outputFileNameWithoutExt + PART_FILENAME_INFIX + 0 + c.getExtension()).exists()) {
+                return c;
+            }
+        }
+        return Codec.of(codec);
+    }
+
+    /**
+     * Gauge ddbid.dump.rows of the current page size of a document type.
+     */
+    private AtomicInteger getRowsGauge(Class<? extends Doc> docType) {
+        if (meterRegistry == null) {
+            return null;
+        }
+        return rowsGauges.computeIfAbsent(docType.getSimpleName(), type -> meterRegistry.gauge("ddbid.dump.rows", Tags.of("type", type), new AtomicInteger()));
+    }
+
+    /**
+     * Walks all pages of a query and writes all documents to a compressed
+     * CSV file. Every ddbid.dump.checkpoint pages the current member is
+     * finished and a checkpoint is written next to the file, so a cancelled
+     * walk continues from there.
+     *
+     * With ddbid.dump.format=json the pages are walked by Solr's cursorMark.
+     * Solr's CSV response writer does not return a nextCursorMark, so with
+     * ddbid.dump.format=csv the cursor is the last id of the previous page and
+     * the next page is requested with a filter on greater ids.
+     */
+    private class RangeDump {
+
+        private final String filter;
+        private final String rangeQuery;
+        private final Path output;
+        private final Path checkpointFile;
+        private final ObjectReader docReader;
+        private final List<String> header;
+        private final boolean printHeader;
+        private final String format;
+        private final PageSizeController pageSize;
+        private final Path indexFile;
+        private final boolean indexed;
+        private final BloomFilter bloomFilter;
+        private final RangeProgress progress = new RangeProgress();
+        private BlockIndex index;
+        private DumpWriter outputWriter;
+        private int pages = 0;
+
+        /**
+         *
+         * @param query Solr query
+         * @param filter Additional filter query or empty string
+         * @param output Output file
+         * @param docType Type of the documents
+         * @param header CSV header
+         * @param printHeader Whether the header should be written
+         * @param pageSize Page size of the requests
+         * @param indexed Whether a block index should be written
+         * @param bloomFilter Filter to add the ids to or null
+         */
+        private RangeDump(String query, String filter, Path output, Class<? extends Doc> docType, List<String> header, boolean printHeader, PageSizeController pageSize, boolean indexed, BloomFilter bloomFilter) {
+            this.filter = filter;
+            this.rangeQuery = filter.isEmpty() ? query : query + "&fq=" + URLEncoder.encode(filter, StandardCharsets.UTF_8);
+            this.output = output;
+            this.checkpointFile = toCheckpoint(output);
+            this.docReader = objectMapper.readerFor(docType);
+            this.header = header;
+            this.printHeader = printHeader;
+            this.format = Helper.getResponseFormat(responseFormat);
+            this.pageSize = pageSize;
+            this.indexFile = toIndex(output);
+            this.indexed = indexed;
+            this.bloomFilter = bloomFilter;
+        }
+
+        /**
+         *
+         * @return numFound and count of written documents
+         * @throws IOException
+         */
+        private int[] run() throws IOException {
+            final Checkpoint checkpoint = readCheckpoint();
+            if (checkpoint != null && checkpoint.isDone()) {
+                log.info("{} is already complete", output);
+                addWrittenIds();
+                return new int[]{checkpoint.getTotalCount(), checkpoint.getProcessedCount()};
+            }
+            long offset = 0;
+            if (checkpoint != null) {
+                // drop everything behind the last member boundary
+                try (final FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+                    channel.truncate(checkpoint.getOffset());
+                }
+                offset = checkpoint.getOffset();
+                progress.resume(checkpoint);
+                index = indexed ? readIndex(offset) : null;
+                addWrittenIds();
+                log.info("Resume {} at {} of {} with cursorMark {}", output, progress.processedCount, progress.totalCount, progress.cursorMark);
+            } else {
+                Files.deleteIfExists(checkpointFile);
+                Files.deleteIfExists(indexFile);
+                index = indexed ? new BlockIndex(header) : null;
+            }
+            try (final DumpWriter writer = new DumpWriter(output, offset, gzipThreads, gzipBlockSize, header, index, bloomFilter)) {
+                outputWriter = writer;
+                if (checkpoint == null && printHeader) {
+                    outputWriter.printHeader();
+                }
+                log.info("Writing data to dump file {}", output);
+                if (progress.totalCount == -1 && format.equals(FORMAT_CSV)) {
+                    progress.totalCount = requestNumFound(rangeQuery);
+                }
+                if (prefetch > 0) {
+                    walkPrefetched();
+                } else {
+                    walkDirect();
+                }
+            }
+            if (index != null) {
+                index.write(indexFile);
+            }
+            final Checkpoint done = createCheckpoint(Files.size(output));
+            done.setDone(true);
+            done.write(checkpointFile);
+            progress.logThroughput(output, format);
+            return new int[]{Math.max(progress.totalCount, 0), progress.processedCount};
+        }
+
+        /**
+         * Reads the index of a resumed file. Without index file the members
+         * of the existing part are unknown, so no index is written.
+         */
+        private BlockIndex readIndex(long offset) {
+            try {
+                if (Files.exists(indexFile)) {
+                    final BlockIndex resumed = BlockIndex.read(indexFile);
+                    resumed.truncate(offset);
+                    return resumed;
+                }
+            } catch (IOException e) {
+                log.warn("Could not read index {}. {}", indexFile, e.getMessage());
+            }
+            log.warn("{} is resumed without index", output);
+            try {
+                Files.deleteIfExists(indexFile);
+            } catch (IOException e) {
+                log.warn("Could not delete index {}. {}", indexFile, e.getMessage());
+            }
+            return null;
+        }
+
+        /**
+         * Adds the ids of the rows written before a resume to the bloom
+         * filter, it's not saved with the checkpoint.
+         */
+        private void addWrittenIds() throws IOException {
+            if (bloomFilter == null || Files.size(output) == 0) {
+                return;
+            }
+            final int idColumn = header.indexOf("id");
+            try (final Reader reader = new InputStreamReader(Codec.open(output), StandardCharsets.UTF_8);
+                    final CSVParser parser = CSVFormat.DEFAULT.parse(reader)) {
+                boolean headerRow = printHeader;
+                for (CSVRecord record : parser) {
+                    if (headerRow) {
+                        headerRow = false;
+                        continue;
+                    }
+                    bloomFilter.put(record.get(idColumn));
+                }
+            }
+        }
+
+        private Checkpoint readCheckpoint() {
+            if (!Files.exists(checkpointFile) || !Files.exists(output)) {
+                return null;
+            }
+            try {
+                final Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+                if (filter.equals(checkpoint.getFilter()) && format.equals(checkpoint.getFormat()) && Files.size(output) >= checkpoint.getOffset()) {
+                    return checkpoint;
+                }
+                log.warn("Checkpoint {} does not match {}. Start from scratch.", checkpointFile, output);
+            } catch (IOException e) {
+                log.warn("Could not read checkpoint {}. {}", checkpointFile, e.getMessage());
+            }
+            return null;
+        }
+
+        private Checkpoint createCheckpoint(long offset) {
+            final Checkpoint checkpoint = new Checkpoint();
+            checkpoint.setFilter(filter);
+            checkpoint.setFormat(format);
+            checkpoint.setCursorMark(progress.cursorMark);
+            checkpoint.setTotalCount(progress.totalCount);
+            checkpoint.setProcessedCount(progress.processedCount);
+            checkpoint.setOffset(offset);
+            return checkpoint;
+        }
+
+        private void pageWritten(PageResult page, String nextCursorMark) throws IOException {
+            progress.add(page);
+            progress.cursorMark = nextCursorMark;
+            if (checkpointPages > 0 && ++pages % checkpointPages == 0) {
+                outputWriter.endMember();
+                // the index must cover the checkpoint
+                if (index != null) {
+                    index.write(indexFile);
+                }
+                createCheckpoint(outputWriter.getPosition()).write(checkpointFile);
+            }
+        }
+
+        private Request createPageRequest(String cursorMark, int rows) {
+            final StringBuilder url = new StringBuilder(API).append(rangeQuery).append("&rows=").append(rows);
+            if (format.equals(FORMAT_CSV)) {
+                url.append("&wt=csv");
+                if (!cursorMark.equals("*")) {
+                    url.append("&fq=").append(URLEncoder.encode("id:{\"" + cursorMark.replace("\\", "\\\\").replace("\"", "\\\"") + "\" TO *]", StandardCharsets.UTF_8));
+                }
+            } else {
+                url.append("&wt=json&cursorMark=").append(URLEncoder.encode(cursorMark, StandardCharsets.UTF_8));
+            }
+            return createRequest(url.toString());
+        }
+
+        private PageResult readPage(InputStream is, int rows, RowConsumer rowConsumer) throws IOException {
+            if (format.equals(FORMAT_CSV)) {
+                return parseCsvPage(is, header, rowConsumer, rows);
+            }
+            return parsePage(is, docReader, rowConsumer);
+        }
+
+        /**
+         * Requests one page after another and parses every response while it
+         * is still being received.
+         */
+        private void walkDirect() throws IOException {
+            String lastCursorMark = "";
+            String nextCursorMark = progress.cursorMark;
+            while (!lastCursorMark.equals(nextCursorMark) && !nextCursorMark.isBlank()) {
+                final int rows = pageSize.getRows();
+                final long start = System.nanoTime();
+                final Request request = createPageRequest(nextCursorMark, rows);
+                log.info("Execute request \"{}\"", request.url());
+                try (final Response response = executeWithRetry(request, r -> r); final CountingInputStream is = new CountingInputStream(response.body().byteStream())) {
+                    final PageResult page = readPage(is, rows, outputWriter::printRecord);
+                    progress.bytes += is.count;
+                    pageSize.observe(page.count, System.nanoTime() - start, is.count);
+                    // set cursorMarks
+                    lastCursorMark = nextCursorMark;
+                    nextCursorMark = page.nextCursorMark;
+                    pageWritten(page, nextCursorMark);
+                } finally {
+                    outputWriter.flush();
+                }
+            }
+        }
+
+        /**
+         * Fetches and parses pages on a separate thread. As soon as the
+         * nextCursorMark of a page is known, the next request is sent while
+         * the writer is still busy with the current page. The parsed rows of
+         * a page wait in a queue of at most ddbid.dump.prefetch pages and are
+         * charged to the heap budget of all prefetched pages, so large pages
+         * hold back the fetcher, too.
+         */
+        private void walkPrefetched() throws IOException {
+            final BlockingQueue<FetchedPage> queue = new ArrayBlockingQueue<>(prefetch);
+            final AtomicBoolean cancelled = new AtomicBoolean(false);
+            final ExecutorService fetcher = Executors.newSingleThreadExecutor();
+            final String firstCursorMark = progress.cursorMark;
+            final Future<?> fetched = fetcher.submit(() -> {
+                try {
+                    String lastCursorMark = "";
+                    String nextCursorMark = firstCursorMark;
+                    while (!lastCursorMark.equals(nextCursorMark) && !nextCursorMark.isBlank() && !cancelled.get()) {
+                        final int rows = pageSize.getRows();
+                        final long start = System.nanoTime();
+                        final Request request = createPageRequest(nextCursorMark, rows);
+                        log.info("Execute request \"{}\"", request.url());
+                        // reading the body is part of an attempt, so a broken
+                        // transfer is retried, too
+                        final FetchedPage parsed = executeWithRetry(request, r -> {
+                            try (r; final CountingInputStream is = new CountingInputStream(r.body().byteStream())) {
+                                final List<List<?>> records = new ArrayList<>(rows);
+                                final PageResult page = readPage(is, rows, values -> records.add(new ArrayList<>(values)));
+                                return new FetchedPage(records, page, is.count, System.nanoTime() - start, null);
+                            }
+                        });
+                        // the parsed rows take about twice the bytes of the response
+                        final MemoryBudget.Reservation reservation = PREFETCH_BUDGET.reserve(2 * parsed.bytes());
+                        // set cursorMarks
+                        lastCursorMark = nextCursorMark;
+                        nextCursorMark = parsed.page().nextCursorMark;
+                        if (!offer(queue, new FetchedPage(parsed.records(), parsed.page(), parsed.bytes(), parsed.nanos(), reservation), cancelled)) {
+                            reservation.close();
+                        }
+                    }
+                } finally {
+                    offer(queue, END_OF_PAGES, cancelled);
+                }
+                return null;
+            });
+            try {
+                FetchedPage fetchedPage;
+                while ((fetchedPage = queue.take()) != END_OF_PAGES) {
+                    try {
+                        for (List<?> record : fetchedPage.records()) {
+                            outputWriter.printRecord(record);
+                        }
+                        progress.bytes += fetchedPage.bytes();
+                        // the fetch time of a page counts, the writer runs concurrently
+                        pageSize.observe(fetchedPage.page().count, fetchedPage.nanos(), fetchedPage.bytes());
+                        pageWritten(fetchedPage.page(), fetchedPage.page().nextCursorMark);
+                    } finally {
+                        fetchedPage.reservation().close();
+                        outputWriter.flush();
+                    }
+                }
+                fetched.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Dump was interrupted", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ioe ? ioe : new IOException(e.getCause());
+            } finally {
+                cancelled.set(true);
+                fetcher.shutdownNow();
+                // pages left behind by a failed writer give back their heap
+                for (FetchedPage left : queue) {
+                    if (left.reservation() != null) {
+                        left.reservation().close();
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean offer(BlockingQueue<FetchedPage> queue, FetchedPage page, AtomicBoolean cancelled) throws InterruptedException {
+        while (!cancelled.get()) {
+            if (queue.offer(page, 1, TimeUnit.SECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Executes a page request. Connection errors, HTTP 429 and 5xx responses
+     * are retried up to ddbid.dump.retry.maxAttempts times with exponential
+     * backoff and jitter, starting at ddbid.dump.retry.delay and capped at
+     * ddbid.dump.retry.maxDelay milliseconds. A Retry-After header of the API
+     * takes precedence over the computed delay and is only capped at
+     * ddbid.dump.retry.maxRetryAfter milliseconds. No retry starts later than
+     * ddbid.dump.retry.maxDuration milliseconds after the first attempt, so a
+     * page can't stall the dump for hours.
+     *
+     * @param request Page request
+     * @param handler Gets the successful response
+     * @return Result of the handler
+     * @throws IOException If all attempts failed, the retries took too long
+     * or the response is not retryable
+     */
+    private <T> T executeWithRetry(Request request, ResponseHandler<T> handler) throws IOException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryMaxDuration);
+        for (int attempt = 1;; ++attempt) {
+            long delay = getBackoffDelay(attempt);
+            try {
+                final Response response = httpClient.newCall(request).execute();
+                if (response.isSuccessful()) {
+                    try {
+                        return handler.handle(response);
+                    } catch (IOException e) {
+                        response.close();
+                        throw e;
+                    }
+                }
+                try (response) {
+                    log.warn("API respose code {} for {}", response.code(), response);
+                    if (attempt >= retryMaxAttempts || !(response.code() == 429 || response.code() >= 500)) {
+                        throw new PageRequestException("API respose code " + response.code() + " for " + request.url());
+                    }
+                    delay = getRetryAfterDelay(response, delay);
+                }
+            } catch (PageRequestException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= retryMaxAttempts) {
+                    throw e;
+                }
+                log.warn("Request {} failed. {}", request.url(), e.getMessage());
+            }
+            if (retryMaxDuration > 0 && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) - deadline > 0) {
+                throw new IOException("Gave up " + request.url() + " after " + attempt + " attempts. The next retry would start after ddbid.dump.retry.maxDuration.");
+            }
+            log.info("Retry {} of {} for {} in {} ms", attempt, retryMaxAttempts - 1, request.url(), delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Retry of " + request.url() + " was interrupted");
+            }
+        }
+    }
+
+    private long getBackoffDelay(int attempt) {
+        final long delay = Math.min(retryMaxDelay, retryDelay << Math.min(attempt - 1, 30));
+        // jitter between half and full delay
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private long getRetryAfterDelay(Response response, long delay) {
+        final String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) {
+            return delay;
+        }
+        try {
+            return Math.min(retryMaxRetryAfter, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            final Date date = response.headers().getDate("Retry-After");
+            return date == null ? delay : Math.min(retryMaxRetryAfter, Math.max(0, date.getTime() - System.currentTimeMillis()));
+        }
+    }
+
+    private Request createRequest(String url) {
+        return new Request.Builder()
+                .url(url)
+                .addHeader("Authorization", "OAuth oauth_consumer_key=\"" + apiKey + "\"").build();
+    }
+
+    /**
+     * Splits the id keyspace into ascending ranges of two character base32
+     * prefixes. The first and the last range are open, so ids outside of the
+     * base32 alphabet are dumped, too.
+     *
+     * @param shardCount Number of ranges
+     * @return Solr filter queries in ascending id order
+     */
+    static List<String> createShardFilters(int shardCount) {
+        final int prefixes = ID_ALPHABET.length() * ID_ALPHABET.length();
+        final int count = Math.max(1, Math.min(shardCount, prefixes));
+        final List<String> filters = new ArrayList<>();
+        if (count == 1) {
+            filters.add("");
+            return filters;
+        }
+        String lower = "*";
+        for (int i = 1; i <= count; ++i) {
+            if (i == count) {
+                filters.add("id:[" + lower + " TO *]");
+            } else {
+                final int p = i * prefixes / count;
+                final String upper = "" + ID_ALPHABET.charAt(p / ID_ALPHABET.length()) + ID_ALPHABET.charAt(p % ID_ALPHABET.length());
+                filters.add("id:[" + lower + " TO " + upper + "}");
+                lower = upper;
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Reads a Solr JSON response token by token. Every document of
+     * response.docs[] is bound on its own and handed to the consumer right
+     * away, so a page is never held in memory as a whole.
+     *
+     * @param is Response body
+     * @param docReader Reader bound to the document type
+     * @param rowConsumer Gets every row, e.g. the writer of the dump
+     * @return numFound, nextCursorMark and count of written documents
+     * @throws IOException
+     */
+    private static PageResult parsePage(InputStream is, ObjectReader docReader, RowConsumer rowConsumer) throws IOException {
+        final PageResult page = new PageResult();
+        try (final JsonParser parser = docReader.getFactory().createParser(is)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Response is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "response" ->
+                        parseResponse(parser, docReader, rowConsumer, page);
+                    case "nextCursorMark" ->
+                        page.nextCursorMark = parser.getValueAsString("");
+                    default ->
+                        parser.skipChildren();
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Reads a Solr CSV response and writes every record in the column order
+     * of the dump header. Multi-valued fields are rendered like in the JSON
+     * path, e.g. [a, b].
+     *
+     * @param is Response body
+     * @param header Header of the dump
+     * @param rowConsumer Gets every row, e.g. the writer of the dump
+     * @param rows Requested rows
+     * @return Last id as cursor, if the page is full, and count of written
+     * documents
+     * @throws IOException
+     */
+    private static PageResult parseCsvPage(InputStream is, List<String> header, RowConsumer rowConsumer, int rows) throws IOException {
+        final PageResult page = new PageResult();
+        page.numFound = -1;
+        String lastId = "";
+        try (final Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8); final CSVParser parser = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(reader)) {
+            final Map<String, Integer> columns = parser.getHeaderMap();
+            final Object[] row = new Object[header.size()];
+            for (CSVRecord record : parser) {
+                for (int i = 0; i < row.length; ++i) {
+                    final String field = header.get(i);
+                    final Integer column = columns.get(field);
+                    if (column == null) {
+                        row[i] = MULTIVALUED_FIELDS.contains(field) ? "[]" : null;
+                    } else if (MULTIVALUED_FIELDS.contains(field)) {
+                        row[i] = splitMultiValue(record.get(column)).toString();
+                    } else {
+                        row[i] = record.get(column);
+                    }
+                }
+                rowConsumer.accept(Arrays.asList(row));
+                lastId = record.get("id");
+                ++page.count;
+            }
+        }
+        page.nextCursorMark = page.count < rows ? "" : lastId;
+        return page;
+    }
+
+    /**
+     * Splits a multi-valued field of Solr's CSV response writer. Values are
+     * separated by comma and commas and backslashes inside of a value are
+     * escaped by backslash.
+     */
+    static List<String> splitMultiValue(String value) {
+        final List<String> values = new ArrayList<>();
+        if (value.isEmpty()) {
+            return values;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                sb.append(value.charAt(++i));
+            } else if (c == ',') {
+                values.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        values.add(sb.toString());
+        return values;
+    }
+
+    private static void parseResponse(JsonParser parser, ObjectReader docReader, RowConsumer rowConsumer, PageResult page) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "numFound" ->
+                    page.numFound = parser.getValueAsInt(0);
+                case "docs" -> {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        final Doc doc = docReader.readValue(parser);
+                        rowConsumer.accept(doc.getData());
+                        ++page.count;
+                    }
+                }
+                default ->
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ResponseHandler<T> {
+
+        T handle(Response response) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface RowConsumer {
+
+        void accept(List<?> values) throws IOException;
+    }
+
+    /**
+     * Error of a page request, which must not be retried
+     */
+    private static class PageRequestException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private PageRequestException(String message) {
+            super(message);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                ++count;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private record FetchedPage(List<List<?>> records, PageResult page, long bytes, long nanos, MemoryBudget.Reservation reservation) {
+
+    }
+
+    private static class RangeProgress {
+
+        private int totalCount = -1;
+        private int processedCount = 0;
+        private String cursorMark = "*";
+        private long bytes = 0;
+        private final long start = System.nanoTime();
+
+        private void resume(Checkpoint checkpoint) {
+            totalCount = checkpoint.getTotalCount();
+            processedCount = checkpoint.getProcessedCount();
+            cursorMark = checkpoint.getCursorMark();
+        }
+
+        private void add(PageResult page) {
+            if (totalCount == -1) {
+                totalCount = page.numFound;
+            }
+            processedCount += page.count;
+            log.info("{} of {} processed...", processedCount, totalCount);
+        }
+
+        private void logThroughput(Path output, String format) {
+            final double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+            log.info("{} written with wt={}: {} rows in {} s, {} rows/s, {} bytes/row received", output, format, processedCount, Math.round(seconds), Math.round(processedCount / seconds), processedCount == 0 ? 0 : bytes / processedCount);
+        }
+    }
+
+    private static class PageResult {
+
+        private int numFound = 0;
+        private String nextCursorMark = "";
+        private int count = 0;
+    }
 }
@@ -15,29 +15,36 @@
  */
 package de.ddb.labs.ddbid.cronjob.objects;
 
+import de.ddb.labs.ddbid.cronjob.helper.Codec;
+import static de.ddb.labs.ddbid.cronjob.objects.Compare.DICTIONARY_FILENAME;
 import de.ddb.labs.ddbid.cronjob.helper.Helper;
+import de.ddb.labs.ddbid.cronjob.helper.IdDictionary;
+import de.ddb.labs.ddbid.cronjob.helper.Manifest;
 import de.ddb.labs.ddbid.database.Database;
 import de.ddb.labs.ddbid.model.Type;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
@@ -51,28 +58,33 @@ import org.springframework.stereotype.Service;
 public class Import implements Runnable {
 
     private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(ZoneId.systemDefault());
+    private static final int SCHEMA_VERSION = 2; // part of the fingerprint, so a changed schema is imported again
     // private final static String CREATE_SCHEMA = "CREATE SCHEMA IF NOT EXISTS \"main\";";
     
     private final static String DROP_ITEM_TABLE = """
                                                   DROP TABLE IF EXISTS "item";
                                                   DROP INDEX IF EXISTS "item_timestamp";
                                                   DROP INDEX IF EXISTS "item_status";
+                                                  DROP INDEX IF EXISTS "item_ordinal";
                                                   """;
     private final static String DROP_PERSON_TABLE = """
                                                     DROP TABLE IF EXISTS "person";
                                                     DROP INDEX IF EXISTS "person_timestamp";
                                                     DROP INDEX IF EXISTS "person_status";
+                                                    DROP INDEX IF EXISTS "person_ordinal";
                                                     """;
     private final static String DROP_ORGANIZATION_TABLE = """
                                                           DROP TABLE IF EXISTS "organization";
                                                           DROP INDEX IF EXISTS "organization_timestamp";
                                                           DROP INDEX IF EXISTS "organization_status";
+                                                          DROP INDEX IF EXISTS "organization_ordinal";
                                                           """;
     private final static String CREATE_ITEM_TABLE = """
                                                     CREATE TABLE IF NOT EXISTS "item"(
                                                       "pkey" int NOT NULL AUTO_INCREMENT,
                                                       "timestamp" TIMESTAMP NOT NULL,
                                                       "id" VARCHAR(32) NOT NULL,
+                                                      "ordinal" INT,
                                                       "status" VARCHAR(16) NOT NULL,
                                                       "dataset_id" VARCHAR(128),
                                                       "label" VARCHAR(1024),
@@ -84,6 +96,7 @@ public class Import implements Runnable {
                                                     );
                                                     CREATE INDEX IF NOT EXISTS "item_timestamp" ON "item"("timestamp");
                                                     CREATE INDEX IF NOT EXISTS "item_status" ON "item"("status");
+                                                    CREATE INDEX IF NOT EXISTS "item_ordinal" ON "item"("ordinal");
                                                     """;
 
     private final static String CREATE_PERSON_TABLE = """
@@ -91,6 +104,7 @@ public class Import implements Runnable {
                                                         "pkey" int NOT NULL AUTO_INCREMENT,
                                                         "timestamp" TIMESTAMP NOT NULL,
                                                         "id" VARCHAR(64) NOT NULL,
+                                                        "ordinal" INT,
                                                         "status" VARCHAR(16) NOT NULL,
                                                         "variant_id" VARCHAR(256),
                                                         "preferredName" VARCHAR(1024),
@@ -99,6 +113,7 @@ public class Import implements Runnable {
                                                       );
                                                       CREATE INDEX IF NOT EXISTS "person_timestamp" ON "person"("timestamp");
                                                       CREATE INDEX IF NOT EXISTS "person_status" ON "person"("status");
+                                                      CREATE INDEX IF NOT EXISTS "person_ordinal" ON "person"("ordinal");
                                                       """;
 
     private final static String CREATE_ORGANIZATION_TABLE = """
@@ -106,6 +121,7 @@ public class Import implements Runnable {
                                                               "pkey" int NOT NULL AUTO_INCREMENT,
                                                               "timestamp" TIMESTAMP NOT NULL,
                                                               "id" VARCHAR(64) NOT NULL,
+                                                              "ordinal" INT,
                                                               "status" VARCHAR(16) NOT NULL,
                                                               "variant_id" VARCHAR(256),
                                                               "preferredName" VARCHAR(1024),
@@ -114,8 +130,15 @@ public class Import implements Runnable {
                                                             );
                                                             CREATE INDEX IF NOT EXISTS "organization_timestamp" ON "organization"("timestamp");
                                                             CREATE INDEX IF NOT EXISTS "organization_status" ON "organization"("status");
+                                                            CREATE INDEX IF NOT EXISTS "organization_ordinal" ON "organization"("ordinal");
                                                             """;
 
+    private final static String CREATE_IMPORT_TABLE = """
+                                                    CREATE TABLE IF NOT EXISTS "import"(
+                                                      "fingerprint" VARCHAR(64) NOT NULL
+                                                    );
+                                                    """;
+
     @Autowired
     private Database database;
 
@@ -139,6 +162,16 @@ public class Import implements Runnable {
 
     public void importToDb() throws IOException, FileNotFoundException, SQLException {
 
+        // nothing changed since the last import, e.g. identical snapshots
+        final String fingerprint = getFingerprint();
+        database.getJdbcTemplate().execute(CREATE_IMPORT_TABLE);
+        final List<String> imported = database.getJdbcTemplate().queryForList("SELECT \"fingerprint\" FROM \"import\";", String.class);
+        if (fingerprint != null && imported.contains(fingerprint)) {
+            log.info("Compare files are unchanged since the last import. Skip import.");
+            return;
+        }
+        database.getJdbcTemplate().execute("DELETE FROM \"import\";");
+
         // database.getJdbcTemplate().execute(CREATE_SCHEMA); // create database (only inital)
         database.getJdbcTemplate().execute(DROP_ITEM_TABLE); // drop existing tables
         database.getJdbcTemplate().execute(DROP_PERSON_TABLE);
@@ -162,13 +195,54 @@ public class Import implements Runnable {
 
         }
 
+        if (fingerprint != null) {
+            database.getJdbcTemplate().update("INSERT INTO \"import\"(\"fingerprint\") VALUES (?);", fingerprint);
+            database.getConnection().commit();
+        }
+    }
+
+    /**
+     * Fingerprint of all compare files with rows, given by their names and the
+     * content hashes of their manifests.
+     *
+     * @return SHA-256 or null if a compare file has no content hash
+     * @throws IOException
+     */
+    private String getFingerprint() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(SCHEMA_VERSION).append('\n');
+        for (String dataPath : List.of(dataPathItem, dataPathPerson, dataPathOrganization)) {
+            for (File f : Helper.getOkCmpFiles(dataPath, Comparator.naturalOrder())) {
+                final Manifest manifest = Helper.getManifest(f);
+                if (manifest == null || manifest.getContentSha256() == null) {
+                    return null;
+                }
+                if (manifest.getRows() == 0) {
+                    continue; // not imported anyway
+                }
+                sb.append(f.getAbsolutePath()).append('\n').append(manifest.getContentSha256()).append('\n');
+            }
+        }
+        return DigestUtils.sha256Hex(sb.toString());
     }
 
     private void importTypes(Type type, String dataPath) throws FileNotFoundException, IOException, SQLException {
         final Set<File> filesItem = Helper.getOkCmpFiles(dataPath, Comparator.naturalOrder());
+        // ordinals of the id dictionary, which is written by dumps
+        final Path dictionaryFile = Path.of(dataPath + DICTIONARY_FILENAME);
+        try (final IdDictionary dictionary = Files.exists(dictionaryFile) ? IdDictionary.open(dictionaryFile) : null) {
+            importTypes(type, filesItem, dictionary);
+        }
+    }
 
+    private void importTypes(Type type, Set<File> filesItem, IdDictionary dictionary) throws FileNotFoundException, IOException, SQLException {
         for (File f : filesItem) {
-            try (final InputStream fileStream = new FileInputStream(f); final InputStream gzipStream = new GZIPInputStream(fileStream); final InputStreamReader decoder = new InputStreamReader(gzipStream, StandardCharsets.UTF_8); final BufferedReader br = new BufferedReader(decoder)) {
+            final Manifest manifest = Helper.getManifest(f);
+            if (manifest != null && manifest.getRows() == 0) {
+                log.info("{} has no rows. Skipping this one.", f.getName());
+                continue;
+            }
+            try (final InputStream fileStream = Codec.open(f.toPath()); final InputStreamReader decoder = new InputStreamReader(fileStream, StandardCharsets.UTF_8); final BufferedReader br = new BufferedReader(decoder)) {
 
                 final CSVParser records = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(br);
                 final Iterator<CSVRecord> recIt = records.iterator();
@@ -179,9 +253,8 @@ public class Import implements Runnable {
                     recQueryBuilder.append('"');
                     recQueryBuilder.append(',');
                 }
-                recQueryBuilder.setLength(recQueryBuilder.length() - 1);
-                recQueryBuilder.append(") VALUES (");
-                for (int i = 0; i < records.getHeaderNames().size(); ++i) {
+                recQueryBuilder.append("\"ordinal\") VALUES (");
+                for (int i = 0; i <= records.getHeaderNames().size(); ++i) {
                     recQueryBuilder.append("?,");
                 }
                 recQueryBuilder.setLength(recQueryBuilder.length() - 1);
@@ -227,6 +300,12 @@ public class Import implements Runnable {
                         default -> {
                         }
                     }
+                    final int ordinal = dictionary == null ? -1 : dictionary.lookup(rec.get(1));
+                    if (ordinal >= 0) {
+                        statement.setInt(records.getHeaderNames().size() + 1, ordinal);
+                    } else {
+                        statement.setNull(records.getHeaderNames().size() + 1, Types.INTEGER);
+                    }
                     statement.addBatch();
                     
                     if (++count % 1000 == 0 || !recIt.hasNext()) {
@@ -237,6 +316,9 @@ public class Import implements Runnable {
                 statement.close();
                 database.getConnection().commit();
                 log.info("Copied {} MISSING {} from {} to database with \"{}\"", count, type, f.getName(), recQuery.toString());
+                if (manifest != null && manifest.getRows() >= 0 && manifest.getRows() != count) {
+                    log.warn("Copied {} rows from {}, but its manifest has {} rows", count, f.getName(), manifest.getRows());
+                }
             }
         }
     }
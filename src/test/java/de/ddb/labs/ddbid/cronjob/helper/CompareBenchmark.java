@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Compares reading and sorting of dump rows as {@link CSVRecord} with
+ * {@link CompareRecord}. Prints rows and comparisons per second and the
+ * allocated bytes per row and comparison of the reading thread.
+ *
+ * Usage: CompareBenchmark [rows] [rounds]
+ */
+@Slf4j
+public class CompareBenchmark {
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+
+    public static void main(String[] args) throws IOException {
+        final int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final byte[] dump = createDump(rows);
+        for (int round = 1; round <= rounds; ++round) {
+            // the first rounds warm up the JIT
+            log.info("Round {} of {} with {} rows", round, rounds, rows);
+            benchmarkCsvRecords(dump);
+            benchmarkCompareRecords(dump);
+        }
+    }
+
+    private static byte[] createDump(int rows) {
+        final Random random = new Random(42);
+        final StringBuilder sb = new StringBuilder("timestamp,id,status,provider_item_id,dataset_id,label,provider_id,sector_fct,supplier_id\r\n");
+        for (int i = 0; i < rows; ++i) {
+            sb.append("2022-03-13T00:00:00+0100,");
+            for (int j = 0; j < 32; ++j) {
+                sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            sb.append(",,item-").append(i).append(",dataset-").append(i % 1000).append(",\"Label, ").append(i).append("\",[P").append(i % 50).append("],sec_0").append(i % 9).append(",S").append(i % 50).append("\r\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void benchmarkCsvRecords(byte[] dump) throws IOException {
+        long time = System.nanoTime();
+        long bytes = allocatedBytes();
+        final List<CSVRecord> records = new ArrayList<>();
+        try (final CSVParser parser = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(new InputStreamReader(new ByteArrayInputStream(dump), StandardCharsets.UTF_8))) {
+            for (CSVRecord record : parser) {
+                records.add(record);
+            }
+        }
+        report("CSVRecord read", records.size(), System.nanoTime() - time, allocatedBytes() - bytes);
+
+        final AtomicLong comparisons = new AtomicLong();
+        final Comparator<CSVRecord> comparator = Comparator.comparing((CSVRecord record) -> record.get("id"));
+        time = System.nanoTime();
+        bytes = allocatedBytes();
+        records.sort((a, b) -> {
+            comparisons.incrementAndGet();
+            return comparator.compare(a, b);
+        });
+        report("CSVRecord sort", comparisons.get(), System.nanoTime() - time, allocatedBytes() - bytes);
+    }
+
+    private static void benchmarkCompareRecords(byte[] dump) throws IOException {
+        long time = System.nanoTime();
+        long bytes = allocatedBytes();
+        final List<CompareRecord> records = new ArrayList<>();
+        try (final CompareRecordReader reader = new CompareRecordReader(new ByteArrayInputStream(dump))) {
+            for (CompareRecord record = reader.read(); record != null; record = reader.read()) {
+                records.add(record);
+            }
+        }
+        report("CompareRecord read", records.size(), System.nanoTime() - time, allocatedBytes() - bytes);
+
+        final AtomicLong comparisons = new AtomicLong();
+        time = System.nanoTime();
+        bytes = allocatedBytes();
+        records.sort((a, b) -> {
+            comparisons.incrementAndGet();
+            return a.compareTo(b);
+        });
+        report("CompareRecord sort", comparisons.get(), System.nanoTime() - time, allocatedBytes() - bytes);
+    }
+
+    private static void report(String name, long operations, long nanos, long bytes) {
+        log.info("{}: {} operations, {} per second, {} bytes allocated per operation", name, operations, Math.round(operations * 1e9 / Math.max(1, nanos)), operations == 0 ? 0 : bytes / operations);
+    }
+
+    /**
+     *
+     * @return Bytes allocated by this thread so far or 0 if unsupported
+     */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean && bean.isThreadAllocatedMemorySupported()) {
+            return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
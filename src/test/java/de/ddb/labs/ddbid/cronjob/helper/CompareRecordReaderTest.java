@@ -0,0 +1,137 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+public class CompareRecordReaderTest {
+
+    private static final String HEADER = "timestamp,id,status,provider_item_id,dataset_id,label,provider_id,sector_fct,supplier_id\r\n";
+
+    @Test
+    public void readsHeader() throws IOException {
+        try (final CompareRecordReader reader = reader(HEADER)) {
+            assertEquals(List.of("timestamp", "id", "status", "provider_item_id", "dataset_id", "label", "provider_id", "sector_fct", "supplier_id"), reader.getHeader());
+            assertEquals(1, reader.getIdColumn());
+            assertNull(reader.read());
+        }
+    }
+
+    @Test
+    public void readsQuotedIds() throws IOException {
+        final String csv = HEADER
+                + ",\"AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA2\",,p1,d1,label,[P1],sec_01,S1\r\n"
+                + ",\"id, with \"\"quotes\"\"\",,p2,d2,label,[P2],sec_02,S2\r\n"
+                + ",plain,,p3,d3,label,[P3],sec_03,S3\r\n";
+        final List<CompareRecord> records = readAll(csv);
+        assertEquals(3, records.size());
+        assertEquals("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA2", records.get(0).getId());
+        assertEquals("id, with \"quotes\"", records.get(1).getId());
+        assertEquals("plain", records.get(2).getId());
+        assertRowsEqualCsv(csv, records);
+    }
+
+    @Test
+    public void keepsSeparatorsQuotesAndLineBreaksOfLabels() throws IOException {
+        final String csv = HEADER
+                + ",ID1,,p1,d1,\"a, b\",[P1],sec_01,S1\r\n"
+                + ",ID2,,p2,d2,\"say \"\"hi\"\"\",[P2],sec_02,S2\r\n"
+                + ",ID3,,p3,d3,\"line 1\r\nline 2\nline 3\",[P3],sec_03,S3\r\n"
+                + ",ID4,,p4,d4,\"\"\"\",[P4],sec_04,S4";
+        final List<CompareRecord> records = readAll(csv);
+        assertEquals(List.of("ID1", "ID2", "ID3", "ID4"), records.stream().map(CompareRecord::getId).toList());
+        assertEquals(",ID3,,p3,d3,\"line 1\r\nline 2\nline 3\",[P3],sec_03,S3", records.get(2).toString());
+        assertRowsEqualCsv(csv, records);
+    }
+
+    @Test
+    public void skipsEmptyLines() throws IOException {
+        final List<CompareRecord> records = readAll(HEADER + "\r\n,ID1,,,,,,,\r\n\r\n\n,ID2,,,,,,,\r\n\r\n");
+        assertEquals(List.of("ID1", "ID2"), records.stream().map(CompareRecord::getId).toList());
+    }
+
+    @Test
+    public void readsRowsWithoutHeader() throws IOException {
+        try (final CompareRecordReader reader = new CompareRecordReader(stream("a,\"x,y\",1\nb,z,2\n"), 1)) {
+            assertNull(reader.getHeader());
+            assertEquals("x,y", reader.read().getId());
+            assertEquals("z", reader.read().getId());
+            assertNull(reader.read());
+        }
+    }
+
+    @Test
+    public void readsIdInLastColumn() throws IOException {
+        try (final CompareRecordReader reader = reader("label,id\r\n\"a,b\",ID1\r\n")) {
+            assertEquals("ID1", reader.read().getId());
+        }
+    }
+
+    @Test
+    public void failsWithoutIdColumn() {
+        assertThrows(IOException.class, () -> reader("timestamp,status\r\n"));
+    }
+
+    @Test
+    public void failsAtUnfinishedQuotes() throws IOException {
+        try (final CompareRecordReader reader = reader(HEADER + ",ID1,,,,\"open,,,\r\n")) {
+            assertThrows(IOException.class, reader::read);
+        }
+    }
+
+    private static void assertRowsEqualCsv(String csv, List<CompareRecord> records) throws IOException {
+        try (final CSVParser parser = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(new StringReader(csv))) {
+            final List<CSVRecord> expected = parser.getRecords();
+            assertEquals(expected.size(), records.size());
+            for (int i = 0; i < expected.size(); ++i) {
+                assertEquals(expected.get(i).get("id"), records.get(i).getId());
+                try (final CSVParser row = CSVFormat.DEFAULT.parse(new StringReader(records.get(i).toString()))) {
+                    assertEquals(expected.get(i).toList(), row.getRecords().get(0).toList());
+                }
+            }
+        }
+    }
+
+    private static List<CompareRecord> readAll(String csv) throws IOException {
+        final List<CompareRecord> records = new ArrayList<>();
+        try (final CompareRecordReader reader = reader(csv)) {
+            for (CompareRecord record = reader.read(); record != null; record = reader.read()) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static CompareRecordReader reader(String csv) throws IOException {
+        return new CompareRecordReader(stream(csv));
+    }
+
+    private static ByteArrayInputStream stream(String csv) {
+        return new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.csv.CSVFormat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+
+public class CompareRecordTest {
+
+    private static final String ALPHABET = "234567ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    /**
+     * Base32 ids of 32 characters are compared by their packed keys, all
+     * other ids by their bytes. Both must give the order of String#compareTo,
+     * also for pairs of a packed and an unpacked id.
+     */
+    @Test
+    public void comparesLikeStrings() throws IOException {
+        final List<String> ids = new ArrayList<>(List.of(
+                "22222222222222222222222222222222",
+                "22222222222222222222222222222223",
+                "ZZZZZZZZZZZZZZZZZZZZZZZZZZZZZZZZ",
+                "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA2",
+                "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA",
+                "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA22",
+                "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA1",
+                "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA8",
+                "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAa",
+                "aAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA2",
+                "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAA-2",
+                "AAAAAAAAAAAA2AAAAAAAAAAAAAAAAAAB",
+                "AAAAAAAAAAAAAAAAAAAAAAAA2AAAAAAB",
+                "0",
+                "2",
+                "Z",
+                "",
+                "id, with \"quotes\""));
+        final Random random = new Random(42);
+        for (int i = 0; i < 200; ++i) {
+            final StringBuilder id = new StringBuilder();
+            for (int j = 0; j < 32; ++j) {
+                id.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            ids.add(id.toString());
+            // the same id with one character outside of the alphabet
+            id.setCharAt(random.nextInt(32), "01-_a".charAt(random.nextInt(5)));
+            ids.add(id.toString());
+        }
+        final List<CompareRecord> records = new ArrayList<>();
+        for (String id : ids) {
+            records.add(record(id));
+        }
+        for (int a = 0; a < ids.size(); ++a) {
+            for (int b = 0; b < ids.size(); ++b) {
+                final String message = ids.get(a) + " <> " + ids.get(b);
+                assertEquals(Integer.signum(ids.get(a).compareTo(ids.get(b))), Integer.signum(records.get(a).compareTo(records.get(b))), message);
+                assertEquals(ids.get(a).equals(ids.get(b)), records.get(a).equals(records.get(b)), message);
+                if (ids.get(a).equals(ids.get(b))) {
+                    assertEquals(records.get(a).hashCode(), records.get(b).hashCode(), message);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void quotedAndUnquotedIdsAreEqual() throws IOException {
+        final CompareRecord unquoted = read(",AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA2,x");
+        final CompareRecord quoted = read(",\"AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA2\",y");
+        assertEquals(0, unquoted.compareTo(quoted));
+        assertEquals(unquoted, quoted);
+        assertEquals(unquoted.hashCode(), quoted.hashCode());
+    }
+
+    @Test
+    public void serializerWritesRowsAsTheyAre() throws IOException {
+        final List<CompareRecord> records = List.of(
+                read(",ID1,\"a, b\""),
+                read(",\"I\"\"D2\",\"line 1\r\nline 2\""));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final var writer = CompareRecord.serializer(1).createWriter(out)) {
+            for (CompareRecord record : records) {
+                writer.write(record);
+            }
+        }
+        try (final var reader = CompareRecord.serializer(1).createReader(new ByteArrayInputStream(out.toByteArray()))) {
+            for (CompareRecord record : records) {
+                final CompareRecord copy = reader.read();
+                assertEquals(record.toString(), copy.toString());
+                assertEquals(record.getId(), copy.getId());
+            }
+            assertNull(reader.read());
+        }
+    }
+
+    private static CompareRecord record(String id) throws IOException {
+        return read(CSVFormat.DEFAULT.format("2022-03-13T00:00:00+0100", id, "NEW"));
+    }
+
+    private static CompareRecord read(String row) throws IOException {
+        try (final CompareRecordReader reader = new CompareRecordReader(new ByteArrayInputStream(row.getBytes(StandardCharsets.UTF_8)), 1)) {
+            return reader.read();
+        }
+    }
+}
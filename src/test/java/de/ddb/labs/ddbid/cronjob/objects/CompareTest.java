@@ -0,0 +1,155 @@
+/*
+ * Copyright 2022 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.ddbid.cronjob.objects;
+
+import de.ddb.labs.ddbid.cronjob.helper.Codec;
+import de.ddb.labs.ddbid.cronjob.helper.CompareRecord;
+import de.ddb.labs.ddbid.cronjob.helper.CompareRecordReader;
+import de.ddb.labs.ddbid.model.Status;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CompareTest {
+
+    private static final List<String> HEADER = List.of("timestamp", "id", "status", "provider_item_id", "dataset_id", "label", "provider_id", "sector_fct", "supplier_id");
+    private static final Instant DATE = Instant.parse("2022-03-13T10:15:30Z");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void differencePrinterReplacesOnlyTimestampAndStatus() throws IOException {
+        final String dump = "timestamp,id,status,provider_item_id,dataset_id,label,provider_id,sector_fct,supplier_id\r\n"
+                + "\"2020-01-01T00:00:00+0100\",ID2,\"NEW\",p2,d2,\"a, b\",\"[P1, P2]\",sec_01,S2\r\n"
+                + ",ID1,,p1,d1,\"say \"\"hi\"\"\",[P1],sec_02,S1\r\n"
+                + ",\"I,D3\",,p3,d3,\"line 1\r\nline 2\",[P3],sec_03,S3\r\n";
+        final File output = dir.resolve("CMP_MISSING.csv.gz").toFile();
+        final boolean sorted;
+        try (final CompareRecordReader reader = reader(dump);
+                final Compare.DifferencePrinter printer = new Compare.DifferencePrinter(output, HEADER, reader.getHeader(), Status.MISSING, DATE, 1, 1024)) {
+            for (CompareRecord record = reader.read(); record != null; record = reader.read()) {
+                printer.print(record);
+            }
+            assertEquals(3, printer.getCount());
+            sorted = printer.isSorted();
+        }
+        assertFalse(sorted);
+
+        final String timestamp = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(ZoneId.systemDefault()).format(DATE);
+        assertEquals("timestamp,id,status,provider_item_id,dataset_id,label,provider_id,sector_fct,supplier_id\r\n"
+                + timestamp + ",ID2,MISSING,p2,d2,\"a, b\",\"[P1, P2]\",sec_01,S2\r\n"
+                + timestamp + ",ID1,MISSING,p1,d1,\"say \"\"hi\"\"\",[P1],sec_02,S1\r\n"
+                + timestamp + ",\"I,D3\",MISSING,p3,d3,\"line 1\r\nline 2\",[P3],sec_03,S3\r\n", read(output));
+
+        final List<CSVRecord> records = parse(read(output));
+        assertEquals(List.of("ID2", "ID1", "I,D3"), records.stream().map(record -> record.get("id")).toList());
+        assertEquals(List.of("a, b", "say \"hi\"", "line 1\r\nline 2"), records.stream().map(record -> record.get("label")).toList());
+    }
+
+    @Test
+    public void differencePrinterKeepsRowsWithoutDate() throws IOException {
+        final String rows = ",ID1,NEW,p1,d1,\"a, b\",[P1],sec_01,S1\r\n"
+                + ",ID2,NEW,p2,d2,\"\"\"\",[P2],sec_02,S2\r\n";
+        final File output = dir.resolve("sorted.csv.gz").toFile();
+        try (final CompareRecordReader reader = new CompareRecordReader(stream(rows), 1);
+                final Compare.DifferencePrinter printer = new Compare.DifferencePrinter(output, null, null, null, null, 1, 1024)) {
+            for (CompareRecord record = reader.read(); record != null; record = reader.read()) {
+                printer.print(record);
+            }
+            assertTrue(printer.isSorted());
+        }
+        assertEquals(rows, read(output));
+    }
+
+    /**
+     * The hash compare writes the differences in the order of the
+     * partitions, which are not sorted, and must sort them afterwards, so the
+     * partitions can be concatenated.
+     */
+    @Test
+    public void hashComparedPartitionsAreSortedById() throws IOException {
+        final File partitionA = write("a-0.csv.gz", "timestamp,id,status,label\r\n"
+                + ",ID5,,\"e, 5\"\r\n"
+                + ",ID3,,c\r\n"
+                + ",ID9,,\"line 1\r\nline 2\"\r\n"
+                + ",ID1,,a\r\n"
+                + ",ID7,,g\r\n");
+        final File partitionB = write("b-0.csv.gz", "timestamp,id,status,label\r\n"
+                + ",ID8,,h\r\n"
+                + ",ID3,,c\r\n"
+                + ",ID6,,\"f \"\"6\"\"\"\r\n"
+                + ",ID2,,b\r\n"
+                + ",ID7,,g\r\n");
+        final File outputMissing = dir.resolve("missing-0.csv.gz").toFile();
+        final File outputNew = dir.resolve("new-0.csv.gz").toFile();
+        Compare.hashDifferences(partitionA, partitionB, outputMissing, outputNew, DATE, 1024);
+
+        final String timestamp = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(ZoneId.systemDefault()).format(DATE);
+        assertEquals(timestamp + ",ID1,MISSING,a\r\n"
+                + timestamp + ",ID5,MISSING,\"e, 5\"\r\n"
+                + timestamp + ",ID9,MISSING,\"line 1\r\nline 2\"\r\n", read(outputMissing));
+        assertEquals(timestamp + ",ID2,NEW,b\r\n"
+                + timestamp + ",ID6,NEW,\"f \"\"6\"\"\"\r\n"
+                + timestamp + ",ID8,NEW,h\r\n", read(outputNew));
+    }
+
+    private File write(String name, String csv) throws IOException {
+        final File file = dir.resolve(name).toFile();
+        try (final OutputStream out = Codec.GZIP.compress(new FileOutputStream(file))) {
+            out.write(csv.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    private static List<CSVRecord> parse(String csv) throws IOException {
+        try (final CSVParser parser = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build().parse(new StringReader(csv))) {
+            return parser.getRecords();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        try (final InputStream in = Codec.open(file.toPath())) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static CompareRecordReader reader(String csv) throws IOException {
+        return new CompareRecordReader(stream(csv));
+    }
+
+    private static ByteArrayInputStream stream(String csv) {
+        return new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8));
+    }
+}